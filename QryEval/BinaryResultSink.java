@@ -0,0 +1,64 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ *  Writes results in a compact binary format, for runs that are too
+ *  large to write as text.  Each query is a record of big-endian
+ *  values (see java.io.DataOutputStream):
+ *  <pre>
+ *    UTF queryName, int n, n &times; (UTF externalDocid, double score)
+ *  </pre>
+ *  Documents are in rank order, and scores are written exactly.
+ */
+public class BinaryResultSink implements ResultSink {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final DataOutputStream output;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param path The results file, which is appended to.
+   *  @throws IOException Error opening the file.
+   */
+  public BinaryResultSink (String path) throws IOException {
+    this.output = new DataOutputStream (
+      new BufferedOutputStream (new FileOutputStream (path, true), 1 << 16));
+  }
+
+  /**
+   *  Flush and close the results file.
+   *  @throws IOException Error writing the file.
+   */
+  public void close () throws IOException {
+    this.output.close ();
+  }
+
+  /**
+   *  Write the top results of one query.
+   *  @param queryName The query id.
+   *  @param results The query's results, sorted by score and external docid.
+   *  @param length The number of results to write.
+   *  @throws IOException Error accessing the Lucene index or writing the results.
+   */
+  public void write (String queryName, ScoreList results, int length)
+    throws IOException {
+
+    int n = Math.min (results.size (), length);
+
+    this.output.writeUTF (queryName);
+    this.output.writeInt (n);
+
+    for (int i = 0; i < n; i++) {
+      this.output.writeUTF (results.getExternalDocid (i));
+      this.output.writeDouble (results.getDocidScore (i));
+    }
+  }
+}
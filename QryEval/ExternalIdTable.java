@@ -0,0 +1,452 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ *  Lookup tables that map internal document ids to external document
+ *  ids and back, without decoding stored Lucene documents.  The
+ *  tables are built once per index, written next to the index, and
+ *  memory-mapped, so later runs just map the files.
+ *  <p>
+ *  There are two files.  The docid file has the UTF-8 external id of
+ *  every document, addressed by an offset table, so docid to external
+ *  id is O(1).  The sorted file has the internal docids sorted by
+ *  external id, so external id to docid is a binary search.  Each
+ *  file starts with a header that records the index version and
+ *  maxDoc, and its length must match its contents; a file that doesn't
+ *  match the index is rebuilt.  A document whose external id is
+ *  missing or empty has no entry.
+ *  </p><p>
+ *  Several processes may open the same index at once.  Each builds
+ *  its tables in its own temporary file and atomically renames it, so
+ *  a process never sees another's partial file.
+ *  </p>
+ */
+public class ExternalIdTable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455844;	// "QEXD"
+  private static final int FORMAT_VERSION = 2;	// Sorted by UTF-8 bytes
+  private static final int HEADER_LENGTH = 20;	// magic, format, version, maxDoc
+
+  /**
+   *  getInternalId's result for an external id that more than one
+   *  document has.
+   */
+  public static final int MULTIPLE = -2;
+
+  private final int maxDoc;
+  private final MappedByteBuffer docidTable;	// offsets, then UTF-8 ids
+  private final int blobStart;
+  private final MappedByteBuffer sortedTable;	// docids sorted by external id
+  private final int numSorted;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open the tables for an index, building them if necessary.
+   *  @param reader The index.
+   *  @param fieldName The stored field that contains the external id.
+   *  @param docidPath The file for the docid to external id table.
+   *  @param sortedPath The file for the external id to docid table.
+   *  @throws IOException Error accessing the Lucene index or the tables.
+   */
+  public ExternalIdTable (IndexReader reader, String fieldName,
+                          Path docidPath, Path sortedPath)
+    throws IOException {
+
+    this.maxDoc = reader.maxDoc ();
+    long indexVersion = getIndexVersion (reader);
+
+    this.blobStart = HEADER_LENGTH + 4 * (this.maxDoc + 1);
+
+    MappedByteBuffer docids = mapIfCurrent (docidPath, indexVersion, this.maxDoc);
+    MappedByteBuffer sorted = mapIfCurrent (sortedPath, indexVersion, this.maxDoc);
+
+    if (! isComplete (docids, sorted, this.maxDoc)) {
+      build (reader, fieldName, indexVersion, docidPath, sortedPath);
+      docids = mapIfCurrent (docidPath, indexVersion, this.maxDoc);
+      sorted = mapIfCurrent (sortedPath, indexVersion, this.maxDoc);
+
+      if (! isComplete (docids, sorted, this.maxDoc))
+        throw new IOException ("The external id tables " + docidPath +
+                               " and " + sortedPath + " are corrupt.");
+    }
+
+    this.docidTable = docids;
+    this.sortedTable = sorted;
+    this.numSorted = (this.sortedTable.capacity () - HEADER_LENGTH) / 4;
+  }
+
+  /**
+   *  Read the external ids from the index and write both tables.
+   *  @param reader The index.
+   *  @param fieldName The stored field that contains the external id.
+   *  @param indexVersion The version of the index.
+   *  @param docidPath The file for the docid to external id table.
+   *  @param sortedPath The file for the external id to docid table.
+   *  @throws IOException Error accessing the Lucene index or the tables.
+   */
+  private static void build (IndexReader reader, String fieldName,
+                             long indexVersion, Path docidPath, Path sortedPath)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    Set<String> fieldsToLoad = Collections.singleton (fieldName);
+    byte[][] externalIds = new byte [maxDoc][];
+    int[] offsets = new int [maxDoc + 1];
+    long blobLength = 0;
+    int numIds = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      Document d = reader.document (docid, fieldsToLoad);
+      String externalId = d.get (fieldName);
+
+      offsets[docid] = (int) blobLength;
+
+      if ((externalId != null) && (externalId.length () > 0)) {
+        externalIds[docid] = externalId.getBytes (StandardCharsets.UTF_8);
+        blobLength += externalIds[docid].length;
+        numIds ++;
+      }
+
+      if (blobLength > Integer.MAX_VALUE - HEADER_LENGTH - 4L * (maxDoc + 1))
+        throw new IOException ("The external ids are too long for an ExternalIdTable.");
+    }
+
+    offsets[maxDoc] = (int) blobLength;
+
+    //  The docid table.
+
+    Path tmpPath = createTempFile (docidPath);
+
+    try {
+      try (DataOutputStream out = openOutput (tmpPath)) {
+        writeHeader (out, indexVersion, maxDoc);
+
+        for (int i = 0; i <= maxDoc; i++)
+          out.writeInt (offsets[i]);
+
+        for (int docid = 0; docid < maxDoc; docid++)
+          if (externalIds[docid] != null)
+            out.write (externalIds[docid]);
+      }
+
+      Files.move (tmpPath, docidPath, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists (tmpPath);
+    }
+
+    //  The sorted table.
+
+    int[] sorted = new int [numIds];
+
+    for (int docid = 0, i = 0; docid < maxDoc; docid++)
+      if (externalIds[docid] != null)
+        sorted[i++] = docid;
+
+    sortByExternalId (sorted, new int [numIds], 0, numIds, externalIds);
+
+    //  Duplicates are adjacent.  getInternalId reports them when they
+    //  are looked up, as Idx does without the tables.
+
+    int numDuplicates = 0;
+
+    for (int i = 1; i < numIds; i++)
+      if (Arrays.equals (externalIds[sorted[i - 1]], externalIds[sorted[i]]))
+        numDuplicates ++;
+
+    if (numDuplicates > 0)
+      System.err.println ("Warning: " + numDuplicates +
+                          " documents repeat the external id of another document.");
+
+    tmpPath = createTempFile (sortedPath);
+
+    try {
+      try (DataOutputStream out = openOutput (tmpPath)) {
+        writeHeader (out, indexVersion, maxDoc);
+
+        for (int i = 0; i < numIds; i++)
+          out.writeInt (sorted[i]);
+      }
+
+      Files.move (tmpPath, sortedPath, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists (tmpPath);
+    }
+  }
+
+  /**
+   *  Compare the external id of a document with a key, as unsigned
+   *  UTF-8 bytes, without copying the id.
+   *  @param docid An internal document id that has an external id.
+   *  @param key An external id, in UTF-8.
+   *  @return Negative, zero, or positive, as the document's id is less
+   *    than, equal to, or greater than the key.
+   */
+  private int compareExternalId (int docid, byte[] key) {
+
+    int start = this.blobStart + this.docidTable.getInt (HEADER_LENGTH + 4 * docid);
+    int length = this.blobStart + this.docidTable.getInt (HEADER_LENGTH + 4 * (docid + 1)) - start;
+    int n = Math.min (length, key.length);
+
+    for (int i = 0; i < n; i++) {
+      int cmp = Byte.toUnsignedInt (this.docidTable.get (start + i)) -
+                Byte.toUnsignedInt (key[i]);
+
+      if (cmp != 0)
+        return cmp;
+    }
+
+    return length - key.length;
+  }
+
+  /**
+   *  Create a temporary file next to a table file, so that it can be
+   *  renamed atomically.  It can be read by everyone, as the tables were.
+   *  @param path A table file.
+   *  @return The temporary file.
+   *  @throws IOException Error creating the file.
+   */
+  private static Path createTempFile (Path path) throws IOException {
+    Path absolutePath = path.toAbsolutePath ();
+    Path tmpPath = Files.createTempFile (absolutePath.getParent (),
+                                         absolutePath.getFileName () + ".", ".tmp");
+
+    //  Temporary files are private, but the tables are shared.
+
+    try {
+      Files.setPosixFilePermissions (tmpPath, PosixFilePermissions.fromString ("rw-r--r--"));
+    } catch (UnsupportedOperationException ex) {
+      //  Not a POSIX file system.
+    }
+
+    return tmpPath;
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param docid An internal document id.
+   *  @return The external document id, or null if the document has none.
+   */
+  public String getExternalId (int docid) {
+
+    int start = this.docidTable.getInt (HEADER_LENGTH + 4 * docid);
+    int end = this.docidTable.getInt (HEADER_LENGTH + 4 * (docid + 1));
+
+    if (start == end)
+      return null;
+
+    byte[] bytes = new byte [end - start];
+    ByteBuffer blob = this.docidTable.duplicate ();
+
+    blob.position (this.blobStart + start);
+    blob.get (bytes);
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal document id of a document.
+   *  @param externalId An external document id.
+   *  @return The internal document id, -1 if there is no such
+   *    document, or MULTIPLE if there is more than one.
+   */
+  public int getInternalId (String externalId) {
+
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = this.numSorted - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int docid = this.getSortedDocid (mid);
+      int cmp = this.compareExternalId (docid, key);
+
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else if (((mid > 0) &&
+                (this.compareExternalId (this.getSortedDocid (mid - 1), key) == 0)) ||
+               ((mid < this.numSorted - 1) &&
+                (this.compareExternalId (this.getSortedDocid (mid + 1), key) == 0)))
+        return MULTIPLE;
+      else
+        return docid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Get the docid at a position of the sorted table.
+   *  @param i A position in the sorted table.
+   *  @return The docid.
+   */
+  private int getSortedDocid (int i) {
+    return this.sortedTable.getInt (HEADER_LENGTH + 4 * i);
+  }
+
+  /**
+   *  Get the version of an index, which changes when the index changes.
+   *  @param reader The index.
+   *  @return The index version, or 0 if it is not known.
+   */
+  private static long getIndexVersion (IndexReader reader) {
+    if (reader instanceof DirectoryReader)
+      return ((DirectoryReader) reader).getVersion ();
+    else
+      return 0;
+  }
+
+  /**
+   *  Returns true if both tables are mapped and their lengths match
+   *  their contents:  the docid table has maxDoc + 1 offsets and the
+   *  ids they address, and the sorted table has at most maxDoc docids.
+   *  @param docidTable The mapped docid table, or null.
+   *  @param sortedTable The mapped sorted table, or null.
+   *  @param maxDoc The maxDoc of the index.
+   *  @return True if the tables can be used.
+   */
+  private static boolean isComplete (MappedByteBuffer docidTable,
+                                     MappedByteBuffer sortedTable, int maxDoc) {
+
+    if ((docidTable == null) || (sortedTable == null))
+      return false;
+
+    long blobStart = HEADER_LENGTH + 4L * (maxDoc + 1);
+
+    if (docidTable.capacity () < blobStart)
+      return false;
+
+    int blobLength = docidTable.getInt (HEADER_LENGTH + 4 * maxDoc);
+    long numSorted = (sortedTable.capacity () - HEADER_LENGTH) / 4;
+
+    return ((blobLength >= 0) &&
+            (docidTable.capacity () == blobStart + blobLength) &&
+            (sortedTable.capacity () == HEADER_LENGTH + 4 * numSorted) &&
+            (numSorted <= maxDoc));
+  }
+
+  /**
+   *  Memory-map a table file if it exists and was built for this index.
+   *  The header is checked in the mapping, so it describes the same
+   *  file that is used.
+   *  @param path A table file.
+   *  @param indexVersion The version of the index.
+   *  @param maxDoc The maxDoc of the index.
+   *  @return The mapped file, or null if it can't be used.
+   *  @throws IOException Error reading the file.
+   */
+  private static MappedByteBuffer mapIfCurrent (Path path, long indexVersion,
+                                                int maxDoc)
+    throws IOException {
+
+    if (! Files.isReadable (path))
+      return null;
+
+    MappedByteBuffer table;
+
+    try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+      if (channel.size () < HEADER_LENGTH)
+        return null;
+
+      table = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    if ((table.getInt (0) == MAGIC) &&
+        (table.getInt (4) == FORMAT_VERSION) &&
+        (table.getLong (8) == indexVersion) &&
+        (table.getInt (16) == maxDoc))
+      return table;
+    else
+      return null;
+  }
+
+  /**
+   *  Open a buffered output stream for a table file.
+   *  @param path A table file.
+   *  @return The output stream.
+   *  @throws IOException Error creating the file.
+   */
+  private static DataOutputStream openOutput (Path path) throws IOException {
+    OutputStream out = Files.newOutputStream (path);
+    return new DataOutputStream (new BufferedOutputStream (out, 1 << 16));
+  }
+
+  /**
+   *  Merge sort docids[from..to) by external id, as unsigned UTF-8
+   *  bytes.
+   *  @param docids The docids to sort.
+   *  @param tmp Scratch space that is as long as docids.
+   *  @param from The start of the range.
+   *  @param to The end of the range (exclusive).
+   *  @param externalIds The external id of each docid.
+   */
+  private static void sortByExternalId (int[] docids, int[] tmp, int from, int to,
+                                        byte[][] externalIds) {
+
+    if (to - from < 2)
+      return;
+
+    int mid = (from + to) >>> 1;
+
+    sortByExternalId (docids, tmp, from, mid, externalIds);
+    sortByExternalId (docids, tmp, mid, to, externalIds);
+
+    int i = from;
+    int j = mid;
+    int k = from;
+
+    while ((i < mid) && (j < to)) {
+      if (Arrays.compareUnsigned (externalIds[docids[i]], externalIds[docids[j]]) <= 0)
+        tmp[k++] = docids[i++];
+      else
+        tmp[k++] = docids[j++];
+    }
+
+    while (i < mid)
+      tmp[k++] = docids[i++];
+
+    while (j < to)
+      tmp[k++] = docids[j++];
+
+    System.arraycopy (tmp, from, docids, from, to - from);
+  }
+
+  /**
+   *  Write the header of a table file.
+   *  @param out The table file.
+   *  @param indexVersion The version of the index.
+   *  @param maxDoc The maxDoc of the index.
+   *  @throws IOException Error writing the file.
+   */
+  private static void writeHeader (DataOutputStream out, long indexVersion, int maxDoc)
+    throws IOException {
+    out.writeInt (MAGIC);
+    out.writeInt (FORMAT_VERSION);
+    out.writeLong (indexVersion);
+    out.writeInt (maxDoc);
+  }
+}
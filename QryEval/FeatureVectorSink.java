@@ -0,0 +1,84 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ *  Writes learning-to-rank feature vectors in svm_rank format, one
+ *  line per document:
+ *  <pre>
+ *    relevance qid:QueryID 1:value 2:value ... # DocID
+ *  </pre>
+ *  Disabled features are skipped.  The file is opened once per phase
+ *  (training or testing) and buffered, and one line buffer is reused,
+ *  as in TrecResultSink.  Close the sink before svm_rank reads the file.
+ */
+public class FeatureVectorSink implements AutoCloseable {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final Writer output;
+  private final boolean[] disabled;		// Indexed by feature number
+  private final ScoreFormat scoreFormat;
+  private final StringBuilder line = new StringBuilder ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param path The feature vector file, which is appended to.
+   *  @param disabledFeatures Feature numbers (1..n) that are not written.
+   *  @param numFeatures The number of features.
+   *  @param scoreFormat How feature values are written.
+   *  @throws IOException Error opening the file.
+   */
+  public FeatureVectorSink (String path, List<Integer> disabledFeatures,
+                            int numFeatures, ScoreFormat scoreFormat)
+    throws IOException {
+    this.disabled = new boolean [numFeatures + 1];
+
+    for (int f : disabledFeatures)
+      if ((f >= 1) && (f <= numFeatures))
+        this.disabled[f] = true;
+
+    this.output = new BufferedWriter (new FileWriter (path, true), 1 << 16);
+    this.scoreFormat = scoreFormat;
+  }
+
+  /**
+   *  Flush and close the feature vector file.
+   *  @throws IOException Error writing the file.
+   */
+  public void close () throws IOException {
+    this.output.close ();
+  }
+
+  /**
+   *  Write the feature vector of one document.
+   *  @param relevance The relevance label, 0 if unknown.
+   *  @param qid The query id.
+   *  @param fv The feature values.  fv[i] is feature i + 1.
+   *  @param externalId The external docid.
+   *  @throws IOException Error writing the file.
+   */
+  public void write (int relevance, int qid, double[] fv, String externalId)
+    throws IOException {
+    this.line.setLength (0);
+    this.line.append (relevance).append (" qid:").append (qid);
+
+    for (int i = 0; i < fv.length; i++) {
+      if (this.disabled[i + 1])
+        continue;
+
+      this.line.append (' ').append (i + 1).append (':');
+      this.scoreFormat.append (this.line, fv[i]);
+    }
+
+    this.line.append (" # ").append (externalId).append ('\n');
+    this.output.append (this.line);
+  }
+}
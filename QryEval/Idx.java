@@ -2,8 +2,13 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
@@ -26,6 +31,10 @@ import org.apache.lucene.util.BytesRef;
  *  federated search).  The Idx class designates one index the
  *  <i>current</i> index.  All requests are satisfied from the current
  *  index.  setCurrentIndex changes the current index.
+ *  </p><p>
+ *  Lookups are safe to use from several threads at once, e.g., when
+ *  queries are evaluated in parallel.  The current index should not
+ *  be changed while queries are being evaluated.
  *  </p>
  */
 public class Idx {
@@ -35,10 +44,36 @@ public class Idx {
   /**
    *  The Lucene index that is considered the current index.
    */
-  public static IndexReader INDEXREADER=null;
+  public static volatile IndexReader INDEXREADER=null;
 
   private static HashMap<String,IndexReader> openIndexReaders =
     new HashMap<String,IndexReader> ();
+  private static HashMap<String,ExternalIdTable> openExternalIdTables =
+    new HashMap<String,ExternalIdTable> ();
+  private static volatile ExternalIdTable externalIdTable = null;
+
+  /**
+   *  The length of each field of each document in the current index,
+   *  indexed by internal docid.  A field's lengths are read from the
+   *  index the first time that they are needed.
+   */
+  private static HashMap<String,ConcurrentHashMap<String,int[]>> openFieldLengths =
+    new HashMap<String,ConcurrentHashMap<String,int[]>> ();
+  private static volatile ConcurrentHashMap<String,int[]> fieldLengths =
+    new ConcurrentHashMap<String,int[]> ();
+  private static HashMap<String,ConcurrentHashMap<String,Integer>> openMinFieldLengths =
+    new HashMap<String,ConcurrentHashMap<String,Integer>> ();
+  private static volatile ConcurrentHashMap<String,Integer> minFieldLengths =
+    new ConcurrentHashMap<String,Integer> ();
+
+  /**
+   *  The docBase of each segment of the current index, followed by
+   *  the index's maxDoc.
+   */
+  private static HashMap<String,int[]> openLeafDocBases =
+    new HashMap<String,int[]> ();
+  private static volatile int[] leafDocBases = null;
+  private static volatile String indexId = null;
   private static String externalIdField = new String ("externalId");
 
   //  --------------- Methods ---------------------------------------
@@ -57,6 +92,41 @@ public class Idx {
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the length of the shortest non-empty instance of the
+   *  specified field.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the shortest field length, or 0 if no document has the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getMinFieldLength (String fieldName)
+    throws IOException {
+
+    Integer cached = Idx.minFieldLengths.get (fieldName);
+
+    if (cached != null)
+      return cached;
+
+    int min = Integer.MAX_VALUE;
+
+    for (int length : getFieldLengths (fieldName))
+      if ((length > 0) && (length < min))
+        min = length;
+
+    min = (min == Integer.MAX_VALUE) ? 0 : min;
+    Idx.minFieldLengths.put (fieldName, min);
+    return min;
+  }
+
+  /**
+   *  Get an id for the current index that changes when the index
+   *  changes, e.g., for keys of persistent caches.
+   *  @return The path of the index and its version.
+   */
+  public static String getIndexId () {
+    return Idx.indexId;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -76,6 +146,9 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int internalId) throws IOException {
+    if (Idx.externalIdTable != null)
+      return Idx.externalIdTable.getExternalId (internalId);
+
     Document d = Idx.INDEXREADER.document(internalId);
     String externalId = d.get(externalIdField);
     return externalId;
@@ -90,20 +163,36 @@ public class Idx {
    */
   public static long getFieldLength (String fieldName, int docid)
     throws IOException {
+    return getFieldLengths (fieldName)[docid];
+  }
 
-    LeafReaderContext leafContext = getLeafReaderContext (Idx.INDEXREADER, docid);
-    int leafDocid = docid - leafContext.docBase;
-    LeafReader leafReader = leafContext.reader ();
-    NumericDocValues norms = leafReader.getNormValues (fieldName);
-    long fieldLength = 0;
-	    
-    if (norms != null) {
-      if (norms.advanceExact (leafDocid)) {
-	fieldLength = norms.longValue();
-      }
+  /**
+   *  Get the lengths of the specified field in every document,
+   *  indexed by internal docid.  The array is read from the index on
+   *  first use and shared after that, so it must not be modified.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the length of the field in each document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int[] getFieldLengths (String fieldName)
+    throws IOException {
+
+    int[] lengths = Idx.fieldLengths.get (fieldName);
+
+    if (lengths != null)
+      return lengths;
+
+    try {
+      return Idx.fieldLengths.computeIfAbsent (fieldName, f -> {
+          try {
+            return readFieldLengths (Idx.INDEXREADER, f);
+          } catch (IOException ex) {
+            throw new UncheckedIOException (ex);
+          }
+        });
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause ();
     }
-	    
-    return fieldLength;
   }
 
   /**
@@ -117,6 +206,17 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
+    if (Idx.externalIdTable != null) {
+      int internalId = Idx.externalIdTable.getInternalId (externalId);
+
+      if (internalId == ExternalIdTable.MULTIPLE)
+        throw new Exception ("Multiple matches for external id " + externalId);
+      else if (internalId < 0)
+        throw new Exception ("External id " + externalId + " not found.");
+
+      return internalId;
+    }
+
     LeafReaderContext leafContext =
       getLeafReaderContext (Idx.INDEXREADER, externalId);
 
@@ -161,25 +261,53 @@ public class Idx {
   }
 
   /**
-   *  Get the context of the LeafReader that contains the specified document.
-   *  @param reader An IndexReader (probably a CompositeReader)
+   *  Get the context of the LeafReader that contains the specified
+   *  document in the current index.
    *  @param docid An internal document id
    *  @return the LeafReaderContext that contains the document, or null
    */
-  private static LeafReaderContext getLeafReaderContext (IndexReader reader, long docid) {
+  public static LeafReaderContext getLeafReaderContext (int docid) {
 
-    LeafReader leafReader = null;
+    int leafIndex = getLeafIndex (docid);
 
-    for (LeafReaderContext leafContext : reader.leaves()) {
-      leafReader = leafContext.reader();
-      int minDocid = leafContext.docBase;
-      int maxDocid = leafContext.docBase + leafReader.numDocs();
-      if ((docid >= minDocid) && (docid < maxDocid)) {
-	return leafContext;
-      };
-    };
+    if (leafIndex < 0)
+      return null;
 
-    return null;
+    return Idx.INDEXREADER.leaves ().get (leafIndex);
+  }
+
+  /**
+   *  Get the index in INDEXREADER.leaves() of the segment that
+   *  contains the specified document.  This is a binary search of
+   *  the segments' docBases, so it is fast even when the index has
+   *  many segments.
+   *  @param docid An internal document id
+   *  @return the index of the segment, or -1 if there is no such document
+   */
+  public static int getLeafIndex (int docid) {
+
+    int[] docBases = Idx.leafDocBases;
+
+    if ((docid < 0) || (docid >= docBases[docBases.length - 1]))
+      return -1;
+
+    //  Find the last segment whose docBase is at most docid.  Empty
+    //  segments share a docBase with the next segment, so the last
+    //  one is the segment that contains the document.
+
+    int lo = 0;
+    int hi = docBases.length - 2;
+
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+
+      if (docBases[mid] <= docid)
+        lo = mid;
+      else
+        hi = mid - 1;
+    }
+
+    return lo;
   }
 
   /**
@@ -220,13 +348,27 @@ public class Idx {
   }
 
 
+  /**
+   *  Get an id for an index that changes when the index changes.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param indexReader The open index.
+   *  @return The absolute path of the index and its version.
+   */
+  private static String getIndexId (String indexPath, IndexReader indexReader) {
+
+    long version = (indexReader instanceof DirectoryReader) ?
+      ((DirectoryReader) indexReader).getVersion () : 0;
+
+    return Paths.get (indexPath).toAbsolutePath ().normalize () + "@" + version;
+  }
+
   /**
    *  Open a Lucene index.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
    */
-  public static void open (String indexPath)
+  public static synchronized void open (String indexPath)
     throws IllegalArgumentException, IOException {
 
     IndexReader indexReader;
@@ -243,12 +385,94 @@ public class Idx {
     //  Keep track of the open indexes.
 
     openIndexReaders.put (indexPath, indexReader);
+    openExternalIdTables.put (indexPath, openExternalIdTable (indexPath, indexReader));
+    openFieldLengths.put (indexPath, new ConcurrentHashMap<String,int[]> ());
+    openMinFieldLengths.put (indexPath, new ConcurrentHashMap<String,Integer> ());
+
+    List<LeafReaderContext> leaves = indexReader.leaves ();
+    int[] docBases = new int [leaves.size () + 1];
+
+    for (int i = 0; i < leaves.size (); i++)
+      docBases[i] = leaves.get (i).docBase;
+
+    docBases[leaves.size ()] = indexReader.maxDoc ();
+    openLeafDocBases.put (indexPath, docBases);
 
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
+      Idx.externalIdTable = openExternalIdTables.get (indexPath);
+      Idx.fieldLengths = openFieldLengths.get (indexPath);
+      Idx.minFieldLengths = openMinFieldLengths.get (indexPath);
+      Idx.leafDocBases = openLeafDocBases.get (indexPath);
+      Idx.indexId = getIndexId (indexPath, indexReader);
+    }
+  }
+
+  /**
+   *  Open the external id tables of an index.  The tables are stored
+   *  next to the index directory, e.g., index.docidToExternalId for
+   *  index/.  If they can't be written there, they are built in the
+   *  temporary directory for this run.  If that fails too, external
+   *  ids are read from the stored documents.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param indexReader The open index.
+   *  @return The tables, or null if they are not available.
+   */
+  private static ExternalIdTable openExternalIdTable (String indexPath,
+                                                      IndexReader indexReader) {
+
+    Path indexDir = Paths.get (indexPath).toAbsolutePath ().normalize ();
+    String name = indexDir.getFileName ().toString ();
+
+    try {
+      return new ExternalIdTable (indexReader, externalIdField,
+        indexDir.resolveSibling (name + ".docidToExternalId"),
+        indexDir.resolveSibling (name + ".externalIdToDocid"));
+    } catch (IOException ex) {
+      //  Probably a read-only location.  Try the temporary directory.
     }
+
+    try {
+      Path docidPath = Files.createTempFile (name, ".docidToExternalId");
+      Path sortedPath = Files.createTempFile (name, ".externalIdToDocid");
+      docidPath.toFile ().deleteOnExit ();
+      sortedPath.toFile ().deleteOnExit ();
+
+      return new ExternalIdTable (indexReader, externalIdField,
+                                  docidPath, sortedPath);
+    } catch (IOException ex) {
+      System.err.println ("Warning: Unable to build the external id tables: " +
+                          ex.getMessage ());
+      return null;
+    }
+  }
+
+  /**
+   *  Read the lengths of a field from the norms of each segment.
+   *  Documents that don't have the field have length 0.
+   *  @param reader An IndexReader (probably a CompositeReader)
+   *  @param fieldName Name of field to access lengths.
+   *  @return the length of the field in each document.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static int[] readFieldLengths (IndexReader reader, String fieldName)
+    throws IOException {
+
+    int[] lengths = new int [reader.maxDoc ()];
+
+    for (LeafReaderContext leafContext : reader.leaves ()) {
+      NumericDocValues norms = leafContext.reader ().getNormValues (fieldName);
+
+      if (norms == null)
+        continue;
+
+      while (norms.nextDoc () != DocIdSetIterator.NO_MORE_DOCS)
+        lengths[leafContext.docBase + norms.docID ()] = (int) norms.longValue ();
+    }
+
+    return lengths;
   }
 
   /**
@@ -256,7 +480,7 @@ public class Idx {
    *  @param indexPath A directory that contains an open Lucene index.
    *  @throws IllegalArgumentException The specified index isn't open.
    */
-  public static void setCurrentIndex (String indexPath)
+  public static synchronized void setCurrentIndex (String indexPath)
     throws IllegalArgumentException {
 
     IndexReader indexReader = openIndexReaders.get (indexPath);
@@ -267,5 +491,10 @@ public class Idx {
     }
 
     Idx.INDEXREADER = indexReader;
+    Idx.externalIdTable = openExternalIdTables.get (indexPath);
+    Idx.fieldLengths = openFieldLengths.get (indexPath);
+    Idx.minFieldLengths = openMinFieldLengths.get (indexPath);
+    Idx.leafDocBases = openLeafDocBases.get (indexPath);
+    Idx.indexId = getIndexId (indexPath, indexReader);
   }
 }
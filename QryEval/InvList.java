@@ -2,8 +2,7 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
@@ -16,11 +15,34 @@ import org.apache.lucene.util.BytesRef;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  The inverted list is stored in columns of primitive ints, so that
+ *  long inverted lists do not create an object per posting or per
+ *  location.  The n'th posting is described by docids[n] and tfs[n].
+ *  Its locations are stored in the flat positions array, from
+ *  positionOffsets[n] to positionOffsets[n+1] (exclusive).
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of an inverted list whose size is unknown.
+   */
+  private static final int DEFAULT_CAPACITY = 16;
+
+  /**
+   *  The number of postings covered by each skip pointer.  Inverted
+   *  lists that are shorter than this don't have skip pointers.
+   */
+  public static final int SKIP_INTERVAL = 128;
+
+  /**
+   *  The number of postings that findDocid scans before it searches.
+   */
+  private static final int LINEAR_SCAN_LENGTH = 32;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -39,50 +61,47 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal id of the document of each posting.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  private int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequency:  The number of times the term occurs in the
+   *  specified field of the document of each posting.
    */
-  public class DocPosting {
+  private int[] tfs;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
+  /**
+   *  The index in the positions array of the first location of each
+   *  posting.  The array has one more entry than there are postings.
+   */
+  private int[] positionOffsets;
 
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  The locations of all postings, in posting order.
+   */
+  private int[] positions;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  True if the locations of the posting that is being constructed
+   *  were appended in ascending order.
+   */
+  private boolean pendingSorted = true;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  Skip pointers:  The last docid of each block of SKIP_INTERVAL
+   *  postings.  They are built on demand by findDocid, and discarded
+   *  when the list changes.
+   */
+  private int[] skipDocids = null;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  Block-max metadata:  The largest tf, and the shortest field
+   *  length, of the postings in each block of SKIP_INTERVAL postings.
+   *  They are built on demand, and discarded when the list changes.
+   */
+  private int[] blockMaxTfs = null;
+  private int[] blockMinLengths = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -90,6 +109,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (DEFAULT_CAPACITY, DEFAULT_CAPACITY);
   }
 
   /**
@@ -98,6 +118,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (DEFAULT_CAPACITY, DEFAULT_CAPACITY);
   }
 
   /**
@@ -116,9 +137,19 @@ public class InvList {
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
+    int termDf = Idx.INDEXREADER.docFreq(term);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if (termDf < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index statistics are used only to size the arrays.  The
+    //  df and ctf of the list are counted from the postings.
+
+    long termCtf = Idx.INDEXREADER.totalTermFreq(term);
+    this.allocate (termDf,
+                   (int) Math.min (Math.max (termCtf, termDf), Integer.MAX_VALUE - 8));
 
     //  Lucene indexes have segments, so postings must be retrieved
     //  from each segment.  Some segments may have no postings.
@@ -139,50 +170,307 @@ public class InvList {
 
 	  int docid = context.docBase + postings.docID();
 	  int tf = postings.freq();
-	  int[] positions = new int[tf];
+
+	  this.startPosting (docid);
 
 	  for (int j = 0; j < tf; j++)
-	    positions[j] = postings.nextPosition();
+	    this.addPosition (postings.nextPosition());
 
-	  this.postings.add(new DocPosting(docid, positions));
-	  this.df++;
-	  this.ctf += tf;
+	  this.finishPosting ();
 	}
       }
     }
   }
 
+  /**
+   *  Append a location to the posting that is being constructed.
+   *  Locations are usually appended in ascending order; if they are
+   *  not, finishPosting sorts them.
+   *  @param location A location where the term occurs.
+   */
+  public void addPosition (int location) {
+
+    int end = this.positionOffsets[this.df] + this.tfs[this.df];
+
+    if (end == this.positions.length) {
+      this.positions = Arrays.copyOf (this.positions,
+                                      Math.max (DEFAULT_CAPACITY,
+                                                this.positions.length * 2));
+    }
+
+    if ((this.tfs[this.df] > 0) && (this.positions[end - 1] > location)) {
+      this.pendingSorted = false;
+    }
+
+    this.positions[end] = location;
+    this.tfs[this.df] ++;
+  }
+
+  /**
+   *  Allocate the columns of the inverted list.
+   *  @param numPostings The initial number of postings that fit.
+   *  @param numPositions The initial number of locations that fit.
+   */
+  private void allocate (int numPostings, int numPositions) {
+    this.docids = new int [numPostings];
+    this.tfs = new int [numPostings];
+    this.positionOffsets = new int [numPostings + 1];
+    this.positions = new int [numPositions];
+  }
+
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array of locations where the term occurs.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
-    
-    //  A posting can only be appended if its docid is greater than
-    //  the last docid.
+  public boolean appendPosting (int docid, int... locations) {
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if (! this.startPosting (docid))
       return false;
 
-    DocPosting newPosting = new DocPosting (docid, positions);
+    for (int i = 0; i < locations.length; i++)
+      this.addPosition (locations[i]);
 
-    this.postings.add (newPosting);
-    this.df ++;
-    this.ctf += newPosting.tf;
+    this.finishPosting ();
     return true;
   }
 
+  /**
+   *  Build the block-max metadata for the current postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void buildBlockMetadata () throws IOException {
+
+    if (this.skipDocids == null)
+      this.buildSkipList ();
+
+    int numBlocks = this.skipDocids.length;
+    int[] lengths = (this.field == null) ? null : Idx.getFieldLengths (this.field);
+
+    this.blockMaxTfs = new int [numBlocks];
+    this.blockMinLengths = new int [numBlocks];
+
+    for (int b = 0; b < numBlocks; b++) {
+      int end = Math.min ((b + 1) * SKIP_INTERVAL, this.df);
+      int maxTf = 0;
+      int minLength = Integer.MAX_VALUE;
+
+      for (int n = b * SKIP_INTERVAL; n < end; n++) {
+        maxTf = Math.max (maxTf, this.tfs[n]);
+        minLength = Math.min (minLength,
+                              (lengths == null) ? 0 : lengths[this.docids[n]]);
+      }
+
+      this.blockMaxTfs[b] = maxTf;
+      this.blockMinLengths[b] = minLength;
+    }
+  }
+
+  /**
+   *  Build the skip pointers for the current postings.
+   */
+  private void buildSkipList () {
+
+    int numBlocks = (this.df + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+    this.skipDocids = new int [numBlocks];
+
+    for (int b = 0; b < numBlocks; b++) {
+      this.skipDocids[b] =
+        this.docids[Math.min ((b + 1) * SKIP_INTERVAL, this.df) - 1];
+    }
+  }
+
+  /**
+   *  Find the first posting at or after index 'from' whose docid is
+   *  at least docid.  Nearby postings are scanned.  Beyond that, skip
+   *  pointers are used to jump over whole blocks of postings, and a
+   *  galloping (exponential) search followed by a binary search is
+   *  used within a block, so the cost depends on the distance skipped,
+   *  not on the length of the list.
+   *  @param from The index of the first posting to consider.
+   *  @param docid An internal document id.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int from, int docid) {
+
+    //  Targets that are only a few postings away are found faster by
+    //  a short scan than by a search.
+
+    int end = Math.min (from + LINEAR_SCAN_LENGTH, this.df);
+
+    for (; from < end; from++) {
+      if (this.docids[from] >= docid)
+        return from;
+    }
+
+    if (from >= this.df)
+      return this.df;
+
+    int hi = this.df;
+
+    //  If the target is beyond the current block, use the skip
+    //  pointers to find the block that contains it.
+
+    if (this.df > SKIP_INTERVAL) {
+
+      if (this.skipDocids == null)
+        this.buildSkipList ();
+
+      int block = from / SKIP_INTERVAL;
+
+      if (this.skipDocids[block] < docid) {
+        block = gallop (this.skipDocids, block + 1, this.skipDocids.length, docid);
+
+        if (block == this.skipDocids.length)
+          return this.df;
+
+        from = block * SKIP_INTERVAL;
+      }
+
+      hi = Math.min ((from / SKIP_INTERVAL + 1) * SKIP_INTERVAL, this.df);
+    }
+
+    return gallop (this.docids, from, hi, docid);
+  }
+
+  /**
+   *  Finish the posting that is being constructed.  A posting that
+   *  has no locations is discarded.
+   */
+  public void finishPosting () {
+
+    int tf = this.tfs[this.df];
+
+    if (tf == 0)
+      return;
+
+    int start = this.positionOffsets[this.df];
+
+    if (! this.pendingSorted) {
+      Arrays.sort (this.positions, start, start + tf);
+    }
+
+    this.df ++;
+    this.ctf += tf;
+    this.positionOffsets[this.df] = start + tf;
+    this.skipDocids = null;
+    this.blockMaxTfs = null;
+    this.blockMinLengths = null;
+  }
+
+  /**
+   *  Find the first entry in the sorted range values[from..to) that is
+   *  at least target.  The search probes from, from+1, from+3, from+7,
+   *  ... until it passes the target, and then does a binary search of
+   *  the last interval.
+   *  @param values A sorted array.
+   *  @param from The first index to consider.
+   *  @param to The end of the range (exclusive).
+   *  @param target The value to find.
+   *  @return The index of the entry, or 'to' if there is none.
+   */
+  private static int gallop (int[] values, int from, int to, int target) {
+
+    int lo = from;
+    int step = 1;
+
+    while ((lo < to) && (values[lo] < target)) {
+      from = lo + 1;
+      lo += step;
+      step <<= 1;
+    }
+
+    int hi = Math.min (lo, to - 1);
+
+    //  values[from-1] < target, and values[hi] >= target or hi is the
+    //  last index of the range.  Binary search [from..hi].
+
+    while (from <= hi) {
+      int mid = (from + hi) >>> 1;
+
+      if (values[mid] < target)
+        from = mid + 1;
+      else
+        hi = mid - 1;
+    }
+
+    return from;
+  }
+
+  /**
+   *  Get the last docid in a block of SKIP_INTERVAL postings.  The
+   *  n'th posting is in block n / SKIP_INTERVAL.
+   *  @param block The index of a block.
+   *  @return The internal document id.
+   */
+  public int getBlockLastDocid (int block) {
+    return this.docids[Math.min ((block + 1) * SKIP_INTERVAL, this.df) - 1];
+  }
+
+  /**
+   *  Get the shortest field length of the documents in a block of
+   *  SKIP_INTERVAL postings.
+   *  @param block The index of a block.
+   *  @return The shortest field length, or 0 if it isn't known.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockMinLength (int block) throws IOException {
+    if (this.blockMinLengths == null)
+      this.buildBlockMetadata ();
+
+    return this.blockMinLengths[block];
+  }
+
+  /**
+   *  Get the largest term frequency in a block of SKIP_INTERVAL postings.
+   *  @param block The index of a block.
+   *  @return The largest term frequency.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getBlockMaxTf (int block) throws IOException {
+    if (this.blockMaxTfs == null)
+      this.buildBlockMetadata ();
+
+    return this.blockMaxTfs[block];
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the i'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param i The index of the requested location.
+   *  @return The location.
+   */
+  public int getPosition(int n, int i) {
+    return this.positions[this.positionOffsets[n] + i];
+  }
+
+  /**
+   *  Estimate the memory that the inverted list uses.
+   *  @return The size of the inverted list, in bytes.
+   */
+  public long getSizeInBytes () {
+
+    long ints = (long) this.docids.length + this.tfs.length +
+      this.positionOffsets.length + this.positions.length;
+
+    if (this.skipDocids != null)
+      ints += this.skipDocids.length;
+
+    if (this.blockMaxTfs != null)
+      ints += this.blockMaxTfs.length + this.blockMinLengths.length;
+
+    return 4 * ints + 128;		// Plus object and array headers
   }
 
   /**
@@ -191,7 +479,26 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Prepare a finished inverted list to be shared by several query
+   *  operators, possibly in different threads.  Unused capacity is
+   *  released, and the skip pointers and block-max metadata are built
+   *  now, so that reading the list never changes it.  No postings may
+   *  be added afterwards.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void prepareToShare () throws IOException {
+
+    int numPositions = this.positionOffsets[this.df];
+
+    this.docids = Arrays.copyOf (this.docids, this.df);
+    this.tfs = Arrays.copyOf (this.tfs, this.df);
+    this.positionOffsets = Arrays.copyOf (this.positionOffsets, this.df + 1);
+    this.positions = Arrays.copyOf (this.positions, numPositions);
+    this.buildBlockMetadata ();
   }
 
   /**
@@ -202,14 +509,44 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
     }
   }
+
+  /**
+   *  Start a new posting at the end of the posting list.  Locations
+   *  are added by addPosition, and the posting is completed by
+   *  finishPosting.  Postings must be started in docid order,
+   *  otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @return true if the posting was started successfully, otherwise false.
+   */
+  public boolean startPosting (int docid) {
+
+    //  A posting can only be appended if its docid is greater than
+    //  the last docid.
+
+    if ((this.df > 0) &&
+	(this.docids[this.df - 1] >= docid))
+      return false;
+
+    if (this.df == this.docids.length) {
+      int capacity = Math.max (DEFAULT_CAPACITY, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, capacity + 1);
+    }
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = 0;
+    this.pendingSorted = true;
+    return true;
+  }
 }
@@ -0,0 +1,132 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.util.Random;
+
+/**
+ *  A micro-benchmark for conjunctive (AND-style) intersection of a
+ *  rare inverted list with a common inverted list.  It compares the
+ *  linear scan that docIteratorAdvanceTo used to do with
+ *  InvList.findDocid.  The lists are synthetic, so an index is not
+ *  required.
+ *  <pre>
+ *    java InvListBenchmark [numDocs [rareDf [commonDf [trials]]]]
+ *  </pre>
+ */
+public class InvListBenchmark {
+
+  /**
+   *  Create an inverted list that contains df documents chosen at
+   *  random from a collection of numDocs documents.
+   *  @param numDocs The number of documents in the collection.
+   *  @param df The number of documents in the list.
+   *  @param random A random number generator.
+   *  @return The inverted list.
+   */
+  private static InvList createList (int numDocs, int df, Random random) {
+
+    InvList list = new InvList ("body");
+    int remaining = df;
+
+    for (int docid = 0; (docid < numDocs) && (remaining > 0); docid++) {
+      if (random.nextInt (numDocs - docid) < remaining) {
+        list.appendPosting (docid, 1);
+        remaining --;
+      }
+    }
+
+    return list;
+  }
+
+  /**
+   *  Intersect two lists by scanning the second list one posting at
+   *  a time.
+   *  @param a The rare list.
+   *  @param b The common list.
+   *  @return The number of documents in both lists.
+   */
+  private static int intersectLinear (InvList a, InvList b) {
+
+    int matches = 0;
+    int j = 0;
+
+    for (int i = 0; i < a.df; i++) {
+      int docid = a.getDocid (i);
+
+      while ((j < b.df) && (b.getDocid (j) < docid))
+        j ++;
+
+      if ((j < b.df) && (b.getDocid (j) == docid))
+        matches ++;
+    }
+
+    return matches;
+  }
+
+  /**
+   *  Intersect two lists by searching the second list with findDocid.
+   *  @param a The rare list.
+   *  @param b The common list.
+   *  @return The number of documents in both lists.
+   */
+  private static int intersectSearch (InvList a, InvList b) {
+
+    int matches = 0;
+    int j = 0;
+
+    for (int i = 0; i < a.df; i++) {
+      int docid = a.getDocid (i);
+
+      j = b.findDocid (j, docid);
+
+      if ((j < b.df) && (b.getDocid (j) == docid))
+        matches ++;
+    }
+
+    return matches;
+  }
+
+  /**
+   *  @param args Optional: numDocs, rareDf, commonDf, trials.
+   */
+  public static void main (String[] args) {
+
+    int numDocs = (args.length > 0) ? Integer.parseInt (args[0]) : 10000000;
+    int rareDf = (args.length > 1) ? Integer.parseInt (args[1]) : 1000;
+    int commonDf = (args.length > 2) ? Integer.parseInt (args[2]) : 5000000;
+    int trials = (args.length > 3) ? Integer.parseInt (args[3]) : 20;
+
+    Random random = new Random (1);
+    InvList rare = createList (numDocs, rareDf, random);
+    InvList common = createList (numDocs, commonDf, random);
+
+    System.out.println ("numDocs: " + numDocs + ", rare df: " + rare.df +
+                        ", common df: " + common.df);
+
+    //  Warm up, and confirm that both methods agree.
+
+    int expected = intersectLinear (rare, common);
+
+    for (int t = 0; t < trials; t++) {
+      if ((intersectLinear (rare, common) != expected) ||
+          (intersectSearch (rare, common) != expected))
+        throw new IllegalStateException ("Intersections differ.");
+    }
+
+    Timer linear = new Timer ();
+    linear.start ();
+    for (int t = 0; t < trials; t++)
+      intersectLinear (rare, common);
+    linear.stop ();
+
+    Timer search = new Timer ();
+    search.start ();
+    for (int t = 0; t < trials; t++)
+      intersectSearch (rare, common);
+    search.stop ();
+
+    System.out.println ("matches: " + expected + ", trials: " + trials);
+    System.out.println ("linear scan:  " + linear);
+    System.out.println ("findDocid:    " + search);
+  }
+}
@@ -0,0 +1,322 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  A cache of the inverted lists that query operators build (e.g.,
+ *  #SYN, #NEAR/n, #WINDOW/n, and terms that are read into an InvList),
+ *  so that an operator that appears again, in the same query or a
+ *  later one, does not read and combine its arguments' postings again.
+ *  Lists are keyed by the current index and the operator's canonical
+ *  form (e.g., "#near/1( apple.body pie.body )"), which includes its
+ *  arguments and fields, and by the segment, if the list covers one.
+ *  <p>
+ *  The cache has a budget in bytes.  Which lists it keeps is decided
+ *  by W-TinyLFU:  new lists enter a small LRU window, and a list that
+ *  leaves the window replaces the least recently used list of the main
+ *  region only if it has been requested more often.  Request counts
+ *  are estimated by a count-min sketch that is halved periodically,
+ *  so the counts favor recent requests.  This keeps lists that are
+ *  requested often, even when many lists are requested only once.
+ *  </p><p>
+ *  The cache is shared by all queries in the process, and is safe to
+ *  use from several threads at once.  Cached lists are shared, so they
+ *  must not be changed.  It is disabled until it is configured.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The percentage of the budget that is used by the window.
+   */
+  private static final int WINDOW_PERCENT = 1;
+
+  /**
+   *  The number of counters in each row of the frequency sketch.  It
+   *  is a power of 2.
+   */
+  private static final int SKETCH_WIDTH = 1 << 14;
+
+  /**
+   *  The number of rows (hash functions) of the frequency sketch.
+   */
+  private static final int SKETCH_DEPTH = 4;
+
+  /**
+   *  The largest count of a sketch counter.
+   */
+  private static final int SKETCH_MAX_COUNT = 15;
+
+  /**
+   *  The sketch counts are halved after this many requests.
+   */
+  private static final int SKETCH_SAMPLE_SIZE = 10 * SKETCH_WIDTH;
+
+  private static final int[] SKETCH_SEEDS =
+    { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+  private static volatile long maxBytes = 0;
+  private static long windowMaxBytes = 0;
+  private static long windowBytes = 0;
+  private static long mainBytes = 0;
+
+  private static LinkedHashMap<String, InvList> window = newRegion ();
+  private static LinkedHashMap<String, InvList> main = newRegion ();
+
+  private static byte[] sketch = new byte [SKETCH_DEPTH * SKETCH_WIDTH];
+  private static int sketchSamples = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+  private static long rejections = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Try to move a list from the window to the main region.  It
+   *  replaces the least recently used lists of the main region, if it
+   *  is requested more often than each of them; otherwise it is
+   *  discarded, and the main region is not changed.
+   *  @param key The list's key.
+   *  @param list The list.
+   */
+  private static void admit (String key, InvList list) {
+
+    long size = list.getSizeInBytes ();
+    long mainMaxBytes = maxBytes - windowMaxBytes;
+    int frequency = getFrequency (key);
+
+    if (size > mainMaxBytes) {
+      rejections ++;
+      return;
+    }
+
+    //  Find the least recently used lists that must leave to make room,
+    //  without removing them, so that a rejected list costs nothing.
+
+    Iterator<Map.Entry<String, InvList>> victims = main.entrySet ().iterator ();
+    long freedBytes = 0;
+    int numVictims = 0;
+
+    while (mainBytes - freedBytes + size > mainMaxBytes) {
+      Map.Entry<String, InvList> victim = victims.next ();
+
+      if (frequency <= getFrequency (victim.getKey ())) {
+        rejections ++;
+        return;
+      }
+
+      freedBytes += victim.getValue ().getSizeInBytes ();
+      numVictims ++;
+    }
+
+    //  The list is requested more often than each of them.
+
+    victims = main.entrySet ().iterator ();
+
+    for (int i = 0; i < numVictims; i++) {
+      victims.next ();
+      victims.remove ();
+    }
+
+    mainBytes -= freedBytes;
+    evictions += numVictims;
+    main.put (key, list);
+    mainBytes += size;
+  }
+
+  /**
+   *  Configure the cache.  Cached lists and statistics are discarded.
+   *  @param budget The most memory that cached lists may use, in
+   *     bytes, or 0 to disable the cache.
+   */
+  public static synchronized void configure (long budget) {
+
+    maxBytes = Math.max (budget, 0);
+    windowMaxBytes = maxBytes * WINDOW_PERCENT / 100;
+    windowBytes = 0;
+    mainBytes = 0;
+    window = newRegion ();
+    main = newRegion ();
+    sketch = new byte [SKETCH_DEPTH * SKETCH_WIDTH];
+    sketchSamples = 0;
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+    rejections = 0;
+  }
+
+  /**
+   *  Look up the inverted list of a query operator.  The request is
+   *  counted, whether or not the list is cached.
+   *  @param q The query operator.
+   *  @return The inverted list, which must not be changed, or null if
+   *     it is not cached.
+   */
+  public static InvList get (QryIop q) {
+
+    if (! isEnabled ())
+      return null;
+
+    String key = getKey (q);
+
+    synchronized (InvListCache.class) {
+      increment (key);
+
+      InvList list = window.get (key);
+
+      if (list == null)
+        list = main.get (key);
+
+      if (list == null)
+        misses ++;
+      else
+        hits ++;
+
+      return list;
+    }
+  }
+
+  /**
+   *  Estimate how often a list has been requested recently.
+   *  @param key The list's key.
+   *  @return The estimated number of requests.
+   */
+  private static int getFrequency (String key) {
+
+    int frequency = SKETCH_MAX_COUNT;
+
+    for (int row = 0; row < SKETCH_DEPTH; row++)
+      frequency = Math.min (frequency, sketch[getSketchIndex (key, row)]);
+
+    return frequency;
+  }
+
+  /**
+   *  Get the cache key of a query operator.  The list of an operator
+   *  that covers one segment of the index (see QryIop.setLeaf) is
+   *  kept apart from the list of the whole index.
+   *  @param q The query operator.
+   *  @return The key.
+   */
+  private static String getKey (QryIop q) {
+    if (q.leaf == null)
+      return Idx.getIndexId () + "\n" + q;
+    else
+      return Idx.getIndexId () + "\nsegment " + q.leaf.ord + "\n" + q;
+  }
+
+  /**
+   *  Get the index of a list's counter in a row of the sketch.
+   *  @param key The list's key.
+   *  @param row The row.
+   *  @return The index in the sketch.
+   */
+  private static int getSketchIndex (String key, int row) {
+    int h = key.hashCode () * SKETCH_SEEDS[row];
+
+    h ^= (h >>> 16);
+    return row * SKETCH_WIDTH + (h & (SKETCH_WIDTH - 1));
+  }
+
+  /**
+   *  Describe the cache's use, e.g., for a report at the end of a run.
+   *  @return The hits, misses, evictions, and memory use of the cache.
+   */
+  public static synchronized String getStatistics () {
+
+    long requests = hits + misses;
+
+    return String.format (
+      "InvList cache:  %d hits, %d misses (%.1f%% hits), %d evictions, " +
+      "%d rejected, %d lists, %d of %d bytes",
+      hits, misses, (requests == 0) ? 0.0 : 100.0 * hits / requests,
+      evictions, rejections, window.size () + main.size (),
+      windowBytes + mainBytes, maxBytes);
+  }
+
+  /**
+   *  Count a request for a list in the sketch.  After every
+   *  SKETCH_SAMPLE_SIZE requests, all counts are halved.
+   *  @param key The list's key.
+   */
+  private static void increment (String key) {
+
+    for (int row = 0; row < SKETCH_DEPTH; row++) {
+      int i = getSketchIndex (key, row);
+
+      if (sketch[i] < SKETCH_MAX_COUNT)
+        sketch[i] ++;
+    }
+
+    if (++ sketchSamples >= SKETCH_SAMPLE_SIZE) {
+      for (int i = 0; i < sketch.length; i++)
+        sketch[i] >>= 1;
+
+      sketchSamples /= 2;
+    }
+  }
+
+  /**
+   *  Returns true if the cache has been configured to keep lists.
+   *  @return True if the cache is enabled.
+   */
+  public static boolean isEnabled () {
+    return (maxBytes > 0);
+  }
+
+  /**
+   *  Create a region of the cache, which orders its lists from least
+   *  to most recently used.
+   *  @return The region.
+   */
+  private static LinkedHashMap<String, InvList> newRegion () {
+    return new LinkedHashMap<String, InvList> (16, 0.75f, true);
+  }
+
+  /**
+   *  Store the inverted list of a query operator.  The list is
+   *  prepared to be shared (see InvList.prepareToShare), so it must be
+   *  complete, and it must not be changed afterwards.
+   *  @param q The query operator.
+   *  @param list The query operator's inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void put (QryIop q, InvList list) throws IOException {
+
+    if (! isEnabled ())
+      return;
+
+    String key = getKey (q);
+
+    list.prepareToShare ();
+
+    synchronized (InvListCache.class) {
+      if (window.containsKey (key) || main.containsKey (key))
+        return;				// Another thread built it too
+
+      window.put (key, list);
+      windowBytes += list.getSizeInBytes ();
+
+      //  Lists that leave the window are candidates for the main region.
+
+      Iterator<Map.Entry<String, InvList>> candidates =
+        window.entrySet ().iterator ();
+
+      while (windowBytes > windowMaxBytes) {
+        Map.Entry<String, InvList> candidate = candidates.next ();
+
+        windowBytes -= candidate.getValue ().getSizeInBytes ();
+        candidates.remove ();
+        admit (candidate.getKey (), candidate.getValue ());
+      }
+    }
+  }
+}
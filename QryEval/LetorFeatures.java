@@ -0,0 +1,223 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.IOException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ *  Computes the learning-to-rank feature vectors of documents for one
+ *  query.  The features are:
+ *  <pre>
+ *    f1:       Spam score.
+ *    f2:       Url depth (the number of '/' in the rawUrl).
+ *    f3:       FromWikipedia (1 if the rawUrl contains "wikipedia.org").
+ *    f4:       PageRank score.
+ *    f5-f7:    BM25, Indri, and term overlap scores of the body field.
+ *    f8-f10:   The same for the title field.
+ *    f11-f13:  The same for the url field.
+ *    f14-f16:  The same for the inlink field.
+ *    f17:      Average tf of the query terms in the body field.
+ *    f18:      tf * idf score of the body field.
+ *  </pre>
+ *  <p>
+ *  The query is tokenized, and the df, idf, and ctf of each query term
+ *  in each field are looked up, once, when the object is created.
+ *  Each field of a document is then scored in one pass over the query
+ *  terms, which computes all of its features at once.  A score of
+ *  Double.MIN_VALUE means that the document doesn't have the field.
+ *  </p>
+ */
+public class LetorFeatures {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of features in a feature vector.
+   */
+  public static final int NUM_FEATURES = 18;
+
+  /**
+   *  The fields that have BM25, Indri, and term overlap features, in
+   *  feature order.  The body field (0) also has f17 and f18.
+   */
+  private static final String[] FIELDS = { "body", "title", "url", "inlink" };
+
+  private final String[] terms;
+  private final TermVectorCache termVectors;
+
+  //  BM25 and tf * idf
+
+  private final double k_1;
+  private final double b;
+  private final double userWeight;
+  private final double[] avgLengths;	// Average length of each field
+  private final double[][] idfs;	// RSJ weight of each field and term
+
+  //  Indri
+
+  private final double mu;
+  private final double oneMinusLambda;	// 1 - lambda
+  private final double exponent;	// 1 / number of query terms
+  private final double[][] muMles;	// mu * ctf / collection length
+  private final double[][] lambdaMles;	// lambda * ctf / collection length
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Prepare to compute feature vectors for a query.
+   *  @param query The query.
+   *  @param k_1 BM25 k_1.
+   *  @param b BM25 b.
+   *  @param k_3 BM25 k_3.
+   *  @param lambda Indri lambda.
+   *  @param mu Indri mu.
+   *  @param termVectors The TermVectors of the batch of documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public LetorFeatures (String query, double k_1, double b, double k_3,
+                        double lambda, double mu, TermVectorCache termVectors)
+    throws IOException {
+
+    this.terms = QryParser.tokenizeString (query);
+    this.termVectors = termVectors;
+
+    this.k_1 = k_1;
+    this.b = b;
+    this.userWeight = (k_3 + 1) * 1 / (k_3 + 1);
+    this.mu = mu;
+    this.oneMinusLambda = 1 - lambda;
+    this.exponent = 1.0 / (double) this.terms.length;
+
+    double N = (double) Idx.getNumDocs ();
+
+    this.avgLengths = new double [FIELDS.length];
+    this.idfs = new double [FIELDS.length][this.terms.length];
+    this.muMles = new double [FIELDS.length][this.terms.length];
+    this.lambdaMles = new double [FIELDS.length][this.terms.length];
+
+    for (int f = 0; f < FIELDS.length; f++) {
+      String field = FIELDS[f];
+      double collectionLength = Idx.getSumOfFieldLengths (field);
+
+      this.avgLengths[f] = Idx.getSumOfFieldLengths (field) / (double) Idx.getDocCount (field);
+
+      for (int t = 0; t < this.terms.length; t++) {
+        Term term = new Term (field, new BytesRef (this.terms[t]));
+        double df = (double) Idx.INDEXREADER.docFreq (term);
+        double ctf = (double) Idx.INDEXREADER.totalTermFreq (term);
+        double mle = ctf / collectionLength;
+
+        this.idfs[f][t] = Math.max (0.0, Math.log ((N - df + 0.5) / (df + 0.5)));
+        this.muMles[f][t] = mu * mle;
+        this.lambdaMles[f][t] = lambda * mle;
+      }
+    }
+  }
+
+  /**
+   *  Compute the feature vector of a document.
+   *  @param docid An internal document id.
+   *  @return The feature vector, which has NUM_FEATURES features.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double[] getFeatures (int docid) throws IOException {
+
+    double[] row = new double [NUM_FEATURES];
+
+    //  f1-f4 are attributes of the document.
+
+    Document d = Idx.INDEXREADER.document (docid);
+    String rawUrl = d.get ("rawUrl");
+    double depth = 0.0;
+
+    for (int i = 0; i < rawUrl.length (); i++)
+      if (rawUrl.charAt (i) == '/')
+        depth += 1;
+
+    row[0] = Double.parseDouble (d.get ("spamScore"));
+    row[1] = depth;
+    row[2] = rawUrl.contains ("wikipedia.org") ? 1.0 : 0.0;
+    row[3] = Double.parseDouble (d.get ("PageRank"));
+
+    //  f5-f18 are scores of fields.
+
+    for (int f = 0; f < FIELDS.length; f++)
+      this.scoreField (docid, f, row);
+
+    return row;
+  }
+
+  /**
+   *  Compute the features of one field of a document in one pass over
+   *  the query terms.
+   *  @param docid An internal document id.
+   *  @param f The index of the field in FIELDS.
+   *  @param row The feature vector.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void scoreField (int docid, int f, double[] row)
+    throws IOException {
+
+    TermVector tv = this.termVectors.get (docid, FIELDS[f]);
+    int base = 4 + 3 * f;
+
+    if (tv.stemsLength () == 0) {
+      row[base] = Double.MIN_VALUE;
+      row[base + 1] = Double.MIN_VALUE;
+      row[base + 2] = (this.terms.length > 0) ? Double.MIN_VALUE : Double.NaN;
+
+      if (f == 0) {
+        row[16] = Double.MIN_VALUE;
+        row[17] = Double.MIN_VALUE;
+      }
+
+      return;
+    }
+
+    double docLength = (double) Idx.getFieldLength (FIELDS[f], docid);
+    double lengthNorm = this.k_1 * (1 - this.b + this.b * docLength / this.avgLengths[f]);
+    double indriDenominator = docLength + this.mu;
+
+    double bm25 = 0.0;
+    double indri = 1.0;
+    boolean indriMatch = false;
+    double overlap = 0.0;
+    double sumTf = 0.0;
+    double tfIdf = 0.0;
+
+    for (int t = 0; t < this.terms.length; t++) {
+      int idx = tv.indexOfStem (this.terms[t]);
+      double tf = 0.0;
+
+      if (idx != -1) {
+        tf = (double) tv.stemFreq (idx);
+        indriMatch = true;
+
+        bm25 += this.idfs[f][t] * (tf / (tf + lengthNorm)) * this.userWeight;
+
+        if (tf != 0)
+          overlap += 1.0;
+
+        sumTf += tf;
+        tfIdf += tf * this.idfs[f][t];
+      }
+
+      double p = this.oneMinusLambda * (tf + this.muMles[f][t]) / indriDenominator +
+        this.lambdaMles[f][t];
+
+      indri *= Math.pow (p, this.exponent);
+    }
+
+    row[base] = bm25;
+    row[base + 1] = indriMatch ? indri : 0.0;
+    row[base + 2] = overlap / (double) this.terms.length;
+
+    if (f == 0) {
+      row[16] = (this.terms.length != 0) ? sumTf / (double) this.terms.length : 0.0;
+      row[17] = tfIdf;
+    }
+  }
+}
@@ -4,6 +4,8 @@
 import java.io.IOException;
 import java.util.ArrayList;
 
+import org.apache.lucene.index.LeafReaderContext;
+
 /**
  *  The root class in the query operator hierarchy.  Most of this
  *  class is abstract, because different <i>types</i> of query
@@ -57,7 +59,9 @@ import java.util.ArrayList;
  *  materialized when the query operator is initialized.  It is not
  *  possible to produce them in a document-at-a-time mode because
  *  the df and ctf statistics are not known until the inverted list
- *  is fully constructed.  QryIop operators provide a document-at-a-time
+ *  is fully constructed.  The exception is the TERM operator, which
+ *  gets df and ctf from the index, so it streams its postings from
+ *  Lucene instead.  QryIop operators provide a document-at-a-time
  *  interface to the inverted lists via docIterators.
  *  </p><p>
  *  The data structure that stores query arguments (args) is accessible
@@ -408,6 +412,18 @@ public abstract class Qry {
     this.displayName = new String (name);
   }
 
+  /**
+   *  Restrict the query to one segment of the index.  Its inverted
+   *  lists cover only the segment's documents, so the query matches
+   *  only them.  This must be done before the query is initialized.
+   *  @param leaf The segment, or null for the whole index.
+   */
+  public void setLeaf (LeafReaderContext leaf) {
+    for (Qry q_i: this.args) {
+      q_i.setLeaf (leaf);
+    }
+  }
+
   /**
    *  Get a string version of this query operator.  This is a generic
    *  method that works for most query operators.  However, some query
@@ -11,14 +11,26 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.math.BigDecimal;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.LeafReaderContext;
 
 
 
@@ -43,10 +55,16 @@ public class QryEval {
       {"body", "url", "keywords", "title"};
   
   //private static int letorFeatureNum = 18;
-  
-  private static int trecEvalOutputLength;
-  
-  private static String trecEvalOutputPath;
+
+  /**
+   *  The results of one query from the query file, which are written
+   *  after the results of the queries before it.
+   */
+  static class QueryResult {
+    String qid;
+    ScoreList results;
+    String expandedQuery;	// null unless there is query expansion
+  }
 
   
   //  --------------- Methods ---------------------------------------
@@ -78,6 +96,102 @@ public class QryEval {
     //  Open the index and initialize the retrieval model.
 
     Idx.open (parameters.get ("indexPath"));
+    RetrievalModel model = createRetrievalModel (parameters);
+
+    //  Perform experiments.  queryThreads (default 1) is the number
+    //  of queries that are evaluated at the same time.  leafThreads
+    //  (default 1) is the number of index segments that each query
+    //  searches at the same time; the same threads read the feedback
+    //  documents of query expansion.
+
+    int queryThreads = getThreadsParameter (parameters, "queryThreads");
+    int leafThreads = getThreadsParameter (parameters, "leafThreads");
+    ForkJoinPool leafPool = (leafThreads > 1) ? new ForkJoinPool (leafThreads) : null;
+
+    //  Query results may be cached in memory (resultCacheSize
+    //  entries) and in a directory (resultCacheDir) for later runs.
+    //  The directory keeps the most recently used results, up to
+    //  resultCacheDirBytes bytes (default 256 MB).
+
+    if (parameters.containsKey ("resultCacheSize") || parameters.containsKey ("resultCacheDir")) {
+      int cacheSize = parameters.containsKey ("resultCacheSize") ?
+        Integer.parseInt (parameters.get ("resultCacheSize")) : 0;
+      long dirBytes = parameters.containsKey ("resultCacheDirBytes") ?
+        Long.parseLong (parameters.get ("resultCacheDirBytes")) : 256L << 20;
+
+      QueryResultCache.configure (cacheSize, parameters.get ("resultCacheDir"), dirBytes);
+    }
+
+    //  The inverted lists that query operators build (e.g., #NEAR/n)
+    //  may be cached, up to invListCacheBytes bytes.
+
+    if (parameters.containsKey ("invListCacheBytes"))
+      InvListCache.configure (Long.parseLong (parameters.get ("invListCacheBytes")));
+
+    //  In server mode, queries come from stdin or a local socket
+    //  instead of the query file, and the index stays open.
+
+    if (parameters.containsKey ("server")) {
+      QryServer server = new QryServer (parameters, leafPool);
+      String where = parameters.get ("server");
+
+      if (where.equals ("stdin"))
+        server.serveStdin (queryThreads);
+      else
+        server.serveSocket (Integer.parseInt (where), queryThreads);
+
+      if (leafPool != null)
+        leafPool.shutdown ();
+
+      return;
+    }
+
+    //  Results are written to one sink for the whole run.
+    //  trecEvalOutputFormat is trec (default) or binary.  Text
+    //  results are also echoed to System.out unless
+    //  trecEvalOutputEcho is false.  scoreFormat (see ScoreFormat)
+    //  controls how scores and feature values are written.
+
+    ScoreFormat scoreFormat = ScoreFormat.forName (parameters.get ("scoreFormat"));
+
+    try (ResultSink sink = ResultSink.open (parameters.get ("trecEvalOutputPath"),
+                                            parameters.get ("trecEvalOutputFormat"),
+                                            ! "false".equals (parameters.get ("trecEvalOutputEcho")),
+                                            scoreFormat)) {
+      if(!(model instanceof RetrievalModelLetor)) {
+          processQueryFile(parameters.get("queryFilePath"), sink,
+          		Integer.parseInt(parameters.get("trecEvalOutputLength")), model, queryThreads,
+          		leafPool);
+      }
+      else {
+      	initializeLetor(model, sink, Integer.parseInt(parameters.get("trecEvalOutputLength")),
+      			scoreFormat);
+      }
+    }
+
+
+    //  Clean up.
+
+    if (leafPool != null)
+      leafPool.shutdown ();
+
+    if (InvListCache.isEnabled ())
+      System.out.println (InvListCache.getStatistics ());
+
+    timer.stop ();
+    System.out.println ("Time:  " + timer);
+  }
+
+  /**
+   *  Create the retrieval model, including its query expansion
+   *  parameters, from the parameters of a parameter file.
+   *  @param parameters All of the parameters contained in the parameter file
+   *  @return The initialized retrieval model
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static RetrievalModel createRetrievalModel (Map<String, String> parameters)
+    throws IOException {
+
     RetrievalModel model = initializeRetrievalModel (parameters);
 
     if(parameters.containsKey("fb") && parameters.get("fb").equals("true")) {
@@ -95,24 +209,27 @@ public class QryEval {
     	
     }
 
- 
-  
-    //  Perform experiments.
-    if(!(model instanceof RetrievalModelLetor)) {
-        processQueryFile(parameters.get("queryFilePath"), parameters.get("trecEvalOutputPath"),
-        		Integer.parseInt(parameters.get("trecEvalOutputLength")), model);   	
-    }
-    else {
-    	trecEvalOutputLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
-    	trecEvalOutputPath = parameters.get("trecEvalOutputPath");
-    	initializeLetor(model);
-    }
+    return model;
+  }
 
+  /**
+   *  Get an optional thread count from the parameters.
+   *  @param parameters All of the parameters contained in the parameter file
+   *  @param name The name of the parameter
+   *  @return The number of threads, which is 1 if the parameter is missing
+   *  @throws IllegalArgumentException The number of threads is less than 1
+   */
+  private static int getThreadsParameter (Map<String, String> parameters, String name) {
 
-    //  Clean up.
-    
-    timer.stop ();
-    System.out.println ("Time:  " + timer);
+    if (! parameters.containsKey (name))
+      return 1;
+
+    int threads = Integer.parseInt (parameters.get (name));
+
+    if (threads < 1)
+      throw new IllegalArgumentException (name + " must be at least 1.");
+
+    return threads;
   }
 
   /**
@@ -149,6 +266,17 @@ public class QryEval {
         double k_3 = Double.parseDouble(parameters.get("BM25:k_3"));
         
         model = new RetrievalModelBM25(k_1, b, k_3);
+
+        if (parameters.containsKey("BM25:pruning")) {
+          String pruning = parameters.get("BM25:pruning").toLowerCase();
+
+          if (! (pruning.equals("none") || pruning.equals("maxscore") ||
+                 pruning.equals("wand") || pruning.equals("bmw")))
+            throw new IllegalArgumentException
+              ("Unknown BM25:pruning " + parameters.get("BM25:pruning"));
+
+          ((RetrievalModelBM25) model).pruning = pruning;
+        }
         
     } else if (modelString.equals("indri")) {
     	
@@ -158,6 +286,17 @@ public class QryEval {
         //System.out.println("lambda:"+lambda);
 
         model = new RetrievalModelIndri(mu, lambda);
+
+        if (parameters.containsKey("Indri:pruning")) {
+          String pruning = parameters.get("Indri:pruning").toLowerCase();
+
+          if (! (pruning.equals("none") || pruning.equals("wand") ||
+                 pruning.equals("bmw")))
+            throw new IllegalArgumentException
+              ("Unknown Indri:pruning " + parameters.get("Indri:pruning"));
+
+          ((RetrievalModelIndri) model).pruning = pruning;
+        }
     }else if(modelString.equals("letor")) {
     	
     	model = new RetrievalModelLetor(parameters);
@@ -172,113 +311,28 @@ public class QryEval {
     return model;
   }
   
-  public static List<Double> getFeatureVector(int int_id, String query, double k_1, double b, double k_3, double lambda, double mu) throws IOException{
-	  List<Double> fv = new ArrayList<>();
-	  
-	  // f1: spam score for d (read from index)
-	  double f1 = Double.parseDouble(Idx.getAttribute("spamScore", int_id));
-	  fv.add(f1);
-  	
-	  // f2: url depth for d(number of '/' in the rawUrl field)
-	  String rawUrl = Idx.getAttribute("rawUrl", int_id);
-	  double f2 = 0.0;
-      for (int i = 0; i < rawUrl.length(); i ++)
-          if (rawUrl.charAt(i) == '/')
-          	f2 += 1;
-      fv.add(f2);
-       
-      // f3: FromWikipedia score for d (1 if the rawUrl contains "wikipedia.org", otherwise 0)
-      double f3 = 0.0;
-      if (rawUrl.contains("wikipedia.org"))
-      	f3 = 1.0;
-      fv.add(f3);
-      
-      // f4: PageRank score for d (read from index).
-      double f4 = Double.parseDouble(Idx.getAttribute("PageRank", int_id));
-      fv.add(f4);
-      
-      QrySopScore sop_score = new QrySopScore();
-      
-      // f5: BM25 score for <q, d_body>
-      double f5 = sop_score.getScoreBM25(int_id, query, "body", k_1, b, k_3);
-      fv.add(f5);
-
-      // f6: Indri score for <q, d_body>
-      double f6 = sop_score.getScoreIndri(int_id, query, "body", lambda, mu);
-      fv.add(f6);
-			
-      // f7: Term overlap score (also called Coordination Match) for <q, d_body>
-      double f7 = sop_score.getOverlapScore(int_id, query, "body");
-      fv.add(f7);
-		
-      // f8: BM25 score for <q, d_title>
-      double f8 = sop_score.getScoreBM25(int_id, query, "title", k_1, b, k_3);
-      fv.add(f8);
-
-      // f9: Indri score for <q, d_title>
-      double f9 = sop_score.getScoreIndri(int_id, query, "title", lambda, mu);
-      fv.add(f9);
-      
-      // f10: Term overlap score (also called Coordination Match) for <q, d_title>
-      double f10 = sop_score.getOverlapScore(int_id, query, "title");
-      fv.add(f10);
-      
-      // f11: BM25 score for <q, d_url>
-      double f11 = sop_score.getScoreBM25(int_id, query, "url", k_1, b, k_3);
-      fv.add(f11);
-      
-      // f12: Indri score for <q, d_url>
-      double f12 = sop_score.getScoreIndri(int_id, query, "url", lambda, mu);
-      fv.add(f12);
-      
-      // f13: Term overlap score (also called Coordination Match) for <q, d_url>
-      double f13 = sop_score.getOverlapScore(int_id, query, "url");
-      fv.add(f13);
-      
-      // f14: BM25 score for <q, d_inlink>
-      double f14 = sop_score.getScoreBM25(int_id, query, "inlink", k_1, b, k_3);
-      fv.add(f14);
-      
-      // f15: Indri score for <q, d_inlink>
-      double f15 = sop_score.getScoreIndri(int_id, query, "inlink", lambda, mu);
-      fv.add(f15);
-      
-      // f16: Term overlap score (also called Coordination Match) for <q, d_inlink>
-      double f16 = sop_score.getOverlapScore(int_id, query, "inlink");
-      fv.add(f16);
-      
-      // f17: Your custom feature - avg term frequency = tf / # terms
-      double f17 = sop_score.getAvgtfScore(int_id, query, "body");
-      fv.add(f17);
-      
-      // f18: Your custom feature - tf * idf score for <q, d_body>
-      double f18 = sop_score.getTfIdfScore(int_id, query, "body");
-      fv.add(f18);
-      
-      return fv;
-
-  }
-  
-  public static List<Double> fvNormalization(List<Double> fv, double Min[], double Max[]) {
-	  for(int i = 0; i < fv.size(); i++) {
+  public static double[] fvNormalization(double[] fv, double Min[], double Max[]) {
+	  for(int i = 0; i < fv.length; i++) {
   		double min = Min[i];
   		double max = Max[i];
-  		double score = fv.get(i);
+  		double score = fv[i];
   		if(score != Double.MIN_VALUE) {
   			if(min != max)
-  				fv.set(i, (score - min) / (max - min));
+  				fv[i] = (score - min) / (max - min);
   			else
-  				fv.set(i, 0.0);
+  				fv[i] = 0.0;
   		}
   		else
-  			fv.set(i, 0.0);
+  			fv[i] = 0.0;
 	  }
 	  
 	  return fv;
 	  
   }
 
-  public static void initializeLetor(RetrievalModel model) throws Exception {
+  public static void initializeLetor(RetrievalModel model, ResultSink sink,
+                                     int trecEvalOutputLength, ScoreFormat scoreFormat)
+      throws Exception {
 	    RetrievalModelLetor letor = (RetrievalModelLetor) model;
 	    String trainQuery = letor.trainQuery;
 	    String trainQrels = letor.trainQrels;
@@ -296,6 +350,7 @@ public class QryEval {
 		double b = letor.b;
 		double mu = letor.mu;
 		double lambda = letor.lambda;
+		TermVectorCache termVectors = new TermVectorCache(letor.termVectorCacheSize);
 	    
 	    // read the featureDisable
 	    List<Integer> disabledFeatures = new ArrayList<>();
@@ -358,30 +413,32 @@ public class QryEval {
 	    //qid_list.addAll(query_map.keySet());
 	    Collections.sort(qid_list);
 	    
-	    Map<String, List<Double>> doc_fv = new HashMap<>();
+	    Map<String, double[]> doc_fv = new HashMap<>();
+	    FeatureVectorSink trainSink = new FeatureVectorSink(trainFV, disabledFeatures,
+	    		LetorFeatures.NUM_FEATURES, scoreFormat);
 	    for(int q_id : qid_list) {
 	    	doc_fv.clear();
 	    	String query = query_map.get(q_id);
 	    	List<String> ext_docs = query_doc_map.get(q_id);
 	    	Collections.sort(ext_docs);
+	    	LetorFeatures features = new LetorFeatures(query, k_1, b, k_3, lambda, mu, termVectors);
 	    	
-	        double Min[] = new double[18];
-	        double Max[] = new double[18];
-	        for (int i = 0; i < 18; i ++) {
+	        double Min[] = new double[LetorFeatures.NUM_FEATURES];
+	        double Max[] = new double[LetorFeatures.NUM_FEATURES];
+	        for (int i = 0; i < LetorFeatures.NUM_FEATURES; i ++) {
 	          Min[i] = Double.MAX_VALUE;
 	          Max[i] = - Double.MAX_VALUE;
 	        }
 	        
 	        for(String ext_id : ext_docs) {
-	        	List<Double> fv = new ArrayList<>();
 	        	int int_id = Idx.getInternalDocid(ext_id);
 	        	
-	        	fv = getFeatureVector(int_id, query, k_1, b ,k_3, lambda, mu);
+	        	double[] fv = features.getFeatures(int_id);
 
 	        	doc_fv.put(ext_id, fv);
 	        	
-	            for (int i = 0; i < fv.size(); i ++) {
-	            	double score = fv.get(i);
+	            for (int i = 0; i < fv.length; i ++) {
+	            	double score = fv[i];
 	            	if(score == Double.MIN_VALUE)// invalid score
 	            		continue;
 	            	Max[i] = Math.max(Max[i], score);
@@ -392,26 +449,20 @@ public class QryEval {
 	        // Normalization
 	        for(String ext_id : ext_docs) {
 	        	
-	        	List<Double> fv = doc_fv.get(ext_id);
+	        	double[] fv = doc_fv.get(ext_id);
 	        	fv = fvNormalization(fv, Min, Max);
 	        	
-	            BufferedWriter output = new BufferedWriter(new FileWriter(trainFV, true));
 	            Map.Entry<Integer, String> pair = new AbstractMap.SimpleImmutableEntry<> (q_id, ext_id);
-	            output.write(qrel_map.get(pair) + " qid:" + q_id);
-	            
-	            for (int i = 0; i < fv.size(); i ++) {
-	                if (disabledFeatures.contains(i + 1))
-	                  continue;
-	                BigDecimal longlonglong = new BigDecimal(fv.get(i));
-	  			  	String outstring = " " + (i + 1) + ":" + longlonglong.toString();
-	  			  	output.write(outstring);
-	            }
-	            output.write(" # " + ext_id + "\n");
-	            output.close();
+	            trainSink.write(qrel_map.get(pair), q_id, fv, ext_id);
 
 	        } // doc loop 
 	    	
 	    }// query loop end
+	    trainSink.close();
+
+	    // The testing documents are a new batch.
+	    System.out.println(termVectors.getStatistics());
+	    termVectors.clear();
 	    
 	    // call svmrank to train a model
 	    Process cmdProc = Runtime.getRuntime().exec(
@@ -440,6 +491,8 @@ public class QryEval {
 	    input = new BufferedReader(new FileReader(queryFilePath));
 	    
 	    Map<Integer, ScoreList> initRanking = new HashMap<>();
+	    FeatureVectorSink testSink = new FeatureVectorSink(testFV, disabledFeatures,
+	    		LetorFeatures.NUM_FEATURES, scoreFormat);
 	    qid_list.clear();
 	    line = null;
 	    while((line = input.readLine()) != null) {
@@ -452,23 +505,22 @@ public class QryEval {
 			initRanking.put(q_id, results);
 			
 			doc_fv.clear();
+			LetorFeatures features = new LetorFeatures(query, k_1, b, k_3, lambda, mu, termVectors);
 
-			double Min[] = new double[18];
-		    double Max[] = new double[18];
-		    for (int i = 0; i < 18; i ++) {
+			double Min[] = new double[LetorFeatures.NUM_FEATURES];
+		    double Max[] = new double[LetorFeatures.NUM_FEATURES];
+		    for (int i = 0; i < LetorFeatures.NUM_FEATURES; i ++) {
 		    	Min[i] = Double.MAX_VALUE;
 		    	Max[i] = - Double.MAX_VALUE;
 		    }
 		    for(int j = 0, len = Math.min(results.size(),trecEvalOutputLength); j < len; j++) {
 		    	int int_id = results.getDocid(j);// int_id check!!!!!!
-		        String ext_id = Idx.getExternalDocid(int_id);
-		        List<Double> fv = new ArrayList<>();
-		        
-		        fv= getFeatureVector(int_id, query, k_1, b, k_3, lambda, mu);
+		        String ext_id = results.getExternalDocid(j);
+		        double[] fv = features.getFeatures(int_id);
 		        
 				doc_fv.put(ext_id, fv);
-				for (int i = 0; i < fv.size(); i ++) {
-	            	double score = fv.get(i);
+				for (int i = 0; i < fv.length; i ++) {
+	            	double score = fv[i];
 	            	if(score == Double.MIN_VALUE)// invalid score
 	            		continue;
 	            	Max[i] = Math.max(Max[i], score);
@@ -479,32 +531,23 @@ public class QryEval {
 		    
 		    for(int j = 0, len = Math.min(results.size(),trecEvalOutputLength); j < len; j++) {
 		    	int int_id = results.getDocid(j);
-		    	String ext_id = Idx.getExternalDocid(int_id);
+		    	String ext_id = results.getExternalDocid(j);
 		    	
-	        	List<Double> fv = doc_fv.get(ext_id);
+	        	double[] fv = doc_fv.get(ext_id);
 	        	// normalize
 	        	fv = fvNormalization(fv, Min, Max);
 		    	
-		    	BufferedWriter output = new BufferedWriter(new FileWriter(testFV, true));
-	            //Map.Entry<Integer, String> pair = new AbstractMap.SimpleImmutableEntry<> (q_id, ext_id);
-	            output.write(0 + " qid:" + q_id);
-	            
-	            for (int i = 0; i < fv.size(); i ++) {
-	                if (disabledFeatures.contains(i + 1))
-	                  continue;
-	                BigDecimal longlonglong = new BigDecimal(fv.get(i));
-	  			  	String outstring = " " + (i + 1) + ":" + longlonglong.toString();
-	  			  	output.write(outstring);
-	            }
-	            output.write(" # " + ext_id + "\n");
-	            output.close();
+		    	testSink.write(0, q_id, fv, ext_id);
 
 		    }// doc loop
 
 		      
 	    }// test query loop end
 
+	    testSink.close();
 	    input.close();
+	    System.out.println(termVectors.getStatistics());
+	    termVectors.clear();
 	    
 	    // call svmrank to produce scores for the test data
 
@@ -546,7 +589,7 @@ public class QryEval {
 	      for (int len = Math.min(results.size(), trecEvalOutputLength), j = len; j < results.size(); j ++)
 	        results.setDocidScore(j, -Double.MAX_VALUE);
 	      results.sort();
-	      printResults(String.valueOf(qid), results, trecEvalOutputPath, trecEvalOutputLength);
+	      sink.write(String.valueOf(qid), results, trecEvalOutputLength);
 	    }
  
 	  
@@ -572,23 +615,19 @@ public class QryEval {
   }
 
   /**
-   * Process one query.
+   * Process one query, and keep every matching document.  Most
+   * callers only need the top results, and should use the version
+   * of processQuery that has an output length.
    * @param qryString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
-   * @return Search results
+   * @return Search results, in docid order
    * @throws IOException Error accessing the index
    */
   static ScoreList processQuery(String qryString, RetrievalModel model)
     throws IOException {
 
-    String defaultOp = model.defaultQrySopName ();
-    qryString = defaultOp + "(" + qryString + ")";
-    Qry q = QryParser.getQuery (qryString);
+    Qry q = parseQuery (qryString, model);
 
-    // Show the query that is evaluated
-    
-    System.out.println("    --> " + q);
-    
     if (q != null) {
 
       ScoreList results = new ScoreList ();
@@ -613,34 +652,365 @@ public class QryEval {
   }
 
   /**
-   *  Process the query file.
+   * Process one query, and keep only the top documents.  Documents
+   * are collected in a bounded heap, so the cost of keeping results
+   * does not depend on how many documents match.
+   * @param qryString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param length The number of documents to keep.
+   * @return Search results, sorted by score and external docid
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qryString, RetrievalModel model, int length)
+    throws IOException {
+    return processQuery (qryString, model, length, null);
+  }
+
+  /**
+   * Process one query, and keep only the top documents.  If a pool
+   * is provided, each segment of the index is searched by its own
+   * copy of the query on the pool, and the top documents of the
+   * segments are merged.  Corpus statistics come from the whole
+   * index, so scores are the same either way.
+   * @param qryString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param length The number of documents to keep.
+   * @param leafPool The pool that searches segments, or null to search sequentially.
+   * @return Search results, sorted by score and external docid
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qryString, RetrievalModel model, int length,
+                                ForkJoinPool leafPool)
+    throws IOException {
+
+    Qry q = parseQuery (qryString, model);
+
+    if (q == null)
+      return null;
+
+    ScoreList results = QueryResultCache.get (q, model, length);
+
+    if (results == null) {
+      results = processQuery (q, qryString, model, length, leafPool);
+      QueryResultCache.put (q, model, length, results);
+    }
+
+    return results;
+  }
+
+  /**
+   * Evaluate a parsed query, and keep only the top documents.  If a
+   * pool is provided, each segment of the index is searched by its
+   * own copy of the query, whose inverted lists cover only that
+   * segment.  First, the inverted lists that operators build (e.g.,
+   * #NEAR/n) are built for each segment, and their df and ctf are
+   * added up, so that scores use the statistics of the whole index.
+   * Then the segments are searched, and their top documents are
+   * merged.  Both steps run on the pool.
+   * @param q The query tree.
+   * @param qryString The query string, which is parsed again for each segment.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param length The number of documents to keep.
+   * @param leafPool The pool that searches segments, or null to search sequentially.
+   * @return Search results, sorted by score and external docid
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList processQuery(Qry q, String qryString, RetrievalModel model,
+                                        int length, ForkJoinPool leafPool)
+    throws IOException {
+
+    List<LeafReaderContext> leaves = Idx.INDEXREADER.leaves ();
+    int numLeaves = leaves.size ();
+
+    if ((leafPool == null) || (numLeaves < 2) || (q.args.size () == 0))
+      return processQuery (q, model, length).toScoreList ();
+
+    //  Each segment gets its own query tree, because query operators
+    //  keep iterator state.  The trees share term lookups.
+
+    List<Qry> leafQs = new ArrayList<> (numLeaves);
+
+    for (int i = 0; i < numLeaves; i++) {
+      Qry leafQ = (i == 0) ?
+        q : QryParser.getQuery (model.defaultQrySopName () + "(" + qryString + ")");
+
+      leafQ.setLeaf (leaves.get (i));
+      leafQs.add (leafQ);
+    }
+
+    QryParser.shareTerms (leafQs);
+
+    //  Build the segments' inverted lists.  The trees have the same
+    //  shape, so the j'th list of each tree is the same operator.
+
+    List<Callable<List<QryIop>>> listTasks = new ArrayList<> (numLeaves);
+
+    for (Qry leafQ : leafQs) {
+      listTasks.add (() -> {
+        List<QryIop> lists = new ArrayList<> ();
+        initializeInvertedLists (leafQ, model, lists);
+        return lists;
+      });
+    }
+
+    List<List<QryIop>> leafLists = invokeLeafTasks (leafPool, listTasks);
+
+    for (int j = 0; j < leafLists.get (0).size (); j++) {
+      int df = 0;
+      int ctf = 0;
+
+      for (List<QryIop> lists : leafLists) {
+        df += lists.get (j).getDf ();
+        ctf += lists.get (j).getCtf ();
+      }
+
+      for (List<QryIop> lists : leafLists)
+        lists.get (j).setCollectionStatistics (df, ctf);
+    }
+
+    //  Search the segments.  The top documents of the index are among
+    //  the top documents of the segments.
+
+    List<Callable<ScoreHeap>> searchTasks = new ArrayList<> (numLeaves);
+
+    for (Qry leafQ : leafQs)
+      searchTasks.add (() -> processQuery (leafQ, model, length));
+
+    ScoreHeap results = new ScoreHeap (length);
+
+    for (ScoreHeap leafResults : invokeLeafTasks (leafPool, searchTasks))
+      results.addAll (leafResults);
+
+    return results.toScoreList ();
+  }
+
+  /**
+   * Initialize the operators of a query that build inverted lists
+   * (e.g., #SYN, #NEAR/n) and whose results are scored, and collect
+   * them in query order.  Terms are skipped, because they stream their
+   * postings and get their statistics from the index.
+   * @param q A query tree.
+   * @param model The retrieval model.
+   * @param lists The operators found so far.
+   * @throws IOException Error accessing the index
+   */
+  private static void initializeInvertedLists(Qry q, RetrievalModel model,
+                                              List<QryIop> lists)
+    throws IOException {
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QryIop)) {
+        initializeInvertedLists (q_i, model, lists);
+      } else if (q_i.args.size () > 0) {
+        q_i.initialize (model);
+        lists.add ((QryIop) q_i);
+      }
+    }
+  }
+
+  /**
+   * Run tasks that search segments of the index, and wait for all of them.
+   * @param leafPool The pool that searches segments.
+   * @param tasks The tasks.
+   * @return The results of the tasks, in the same order.
+   * @throws IOException Error accessing the index
+   */
+  private static <T> List<T> invokeLeafTasks(ForkJoinPool leafPool,
+                                             List<Callable<T>> tasks)
+    throws IOException {
+
+    List<T> results = new ArrayList<> (tasks.size ());
+
+    for (Future<T> task : leafPool.invokeAll (tasks)) {
+      try {
+        results.add (task.get ());
+      } catch (InterruptedException ex) {
+        Thread.currentThread ().interrupt ();
+        throw new IOException (ex);
+      } catch (ExecutionException ex) {
+        if (ex.getCause () instanceof IOException)
+          throw (IOException) ex.getCause ();
+        else if (ex.getCause () instanceof RuntimeException)
+          throw (RuntimeException) ex.getCause ();
+        else
+          throw new IOException (ex.getCause ());
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Evaluate a query, and keep only the top documents.  A query that
+   * is restricted to a segment of the index (see Qry.setLeaf) matches
+   * only the segment's documents.
+   * @param q A query tree.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param length The number of documents to keep.
+   * @return The top documents
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreHeap processQuery(Qry q, RetrievalModel model, int length)
+    throws IOException {
+
+    ScoreHeap results = new ScoreHeap (length);
+
+    if (q.args.size () > 0) {		// Ignore empty queries
+
+      q.initialize (model);
+
+      while (q.docIteratorHasMatch (model)) {
+        int docid = q.docIteratorGetMatch ();
+        double score = ((QrySop) q).getScore (model);
+        results.add (docid, score);
+        ((QrySop) q).setMinCompetitiveScore (results.getMinCompetitiveScore ());
+        q.docIteratorAdvancePast (docid);
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Parse a query with the retrieval model's default query operator.
+   * @param qryString A string that contains a query.
+   * @param model The retrieval model determines the default operator.
+   * @return The query tree
+   * @throws IOException Error accessing the index
+   */
+  private static Qry parseQuery(String qryString, RetrievalModel model)
+    throws IOException {
+
+    String defaultOp = model.defaultQrySopName ();
+    qryString = defaultOp + "(" + qryString + ")";
+    Qry q = QryParser.getQuery (qryString);
+
+    // Show the query that is evaluated
+    
+    System.out.println("    --> " + q);
+
+    return q;
+  }
+
+  /**
+   *  Process the query file.  Queries are independent, so several can
+   *  be evaluated at the same time, but results are written in the
+   *  order of the query file.  Console messages from queries that are
+   *  evaluated at the same time may be interleaved.
    *  @param queryFilePath Path to the query file
+   *  @param sink The destination of the results
+   *  @param length The number of documents to write for each query
    *  @param model A retrieval model that will guide matching and scoring
- * @throws Exception 
+   *  @param numThreads The number of queries to evaluate at the same time
+   *  @param leafPool The pool that searches segments, or null
+   *  @throws Exception Error accessing the Lucene index or the files.
    */
-  static void processQueryFile(String queryFilePath, String trecEvalOutputPath, int length,
-                               RetrievalModel model)
+  static void processQueryFile(String queryFilePath, ResultSink sink, int length,
+                               RetrievalModel model, int numThreads, ForkJoinPool leafPool)
       throws Exception {
 
     BufferedReader input = null;
-    //BufferedWriter output = null;
-    BufferedWriter expansion = null;
-    
+    ExecutorService executor = null;
 
     try {
       String qLine = null;
 
       input = new BufferedReader(new FileReader(queryFilePath));
 
+      //  An initial ranking file is read once, not once per query.
+
+      Map<String, ScoreList> initialRankings = null;
+
+      if ((model instanceof RetrievalModelIndri) &&
+          ((RetrievalModelIndri)model).fb &&
+          ! ((RetrievalModelIndri)model).fbInitialRankingFile.equals("")) {
+        initialRankings =
+          readInitialRankingFile(((RetrievalModelIndri)model).fbInitialRankingFile);
+      }
+
+      //  Each pass of the loop processes one query.  With one thread,
+      //  the query is processed and written right away.  Otherwise it
+      //  is queued, and finished queries are written in order.  The
+      //  queue is bounded, so a slow query can't make the others pile
+      //  up in memory.
 
-      //  Each pass of the loop processes one query.
+      if (numThreads > 1)
+        executor = Executors.newFixedThreadPool(numThreads);
+
+      Queue<Future<QueryResult>> pending = new ArrayDeque<>();
+      Map<String, ScoreList> rankings = initialRankings;
 
       while ((qLine = input.readLine()) != null) {
+        final String line = qLine;
+
+        if (executor == null) {
+          writeQueryResult(processQueryLine(line, model, length, rankings, leafPool),
+                           sink, length, model);
+          continue;
+        }
+
+        pending.add(executor.submit(() -> processQueryLine(line, model, length, rankings, leafPool)));
+
+        if (pending.size() >= 2 * numThreads)
+          writeQueryResult(getQueryResult(pending.remove()), sink, length, model);
+      }
+
+      while (! pending.isEmpty())
+        writeQueryResult(getQueryResult(pending.remove()), sink, length, model);
+
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    } finally {
+      if (executor != null)
+        executor.shutdownNow();
+
+      if (input != null)
+        input.close();
+    }
+  }
+
+  /**
+   *  Wait for a query to finish.
+   *  @param future The query's task.
+   *  @return The query's results.
+   *  @throws Exception The error that stopped the query.
+   */
+  private static QueryResult getQueryResult(Future<QueryResult> future)
+      throws Exception {
+
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      else
+        throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   *  Process one line of the query file.  This is safe to call from
+   *  several threads at once.
+   *  @param qLine A line of the query file, in qid:query format
+   *  @param model A retrieval model that will guide matching and scoring
+   *  @param length The number of documents to keep
+   *  @param initialRankings Initial rankings for query expansion, or null
+   *  @param leafPool The pool that searches segments, or null
+   *  @return The query's results
+   *  @throws IOException Error accessing the Lucene index
+   */
+  static QueryResult processQueryLine(String qLine, RetrievalModel model, int length,
+                                              Map<String, ScoreList> initialRankings,
+                                              ForkJoinPool leafPool)
+      throws IOException {
 
         printMemoryUsage(false);
         System.out.println("Query " + qLine);
         String[] pair = qLine.split(":");
         ScoreList curr_scorelist = null;
+        QueryResult result = new QueryResult();
 
 		if (pair.length != 2) {
 	          throw new IllegalArgumentException
@@ -649,31 +1019,28 @@ public class QryEval {
 
 		String qid = pair[0];
 		String query = pair[1];
+		result.qid = qid;
 	
 		if(model instanceof RetrievalModelIndri) {
 			//System.out.println(((RetrievalModelIndri)model).fb);
 			if(((RetrievalModelIndri)model).fb == true) {
-				if(((RetrievalModelIndri)model).fbInitialRankingFile.equals("")) {
-					curr_scorelist = processQuery(query, model);
-					curr_scorelist.sort();
+				if(initialRankings == null) {
+					curr_scorelist = processQuery(query, model,
+							(int) ((RetrievalModelIndri)model).fbDocs, leafPool);
 				}
 				else {
-					Map<String, ScoreList> scorelist_map = readInitialRankingFile(((RetrievalModelIndri)model).fbInitialRankingFile);
-					curr_scorelist = scorelist_map.get(qid);
+					// expandQuery truncates the list, so use a copy
+					curr_scorelist = new ScoreList(initialRankings.get(qid));
 				}
 					
-				String expandedQuery = expandQuery(curr_scorelist, (RetrievalModelIndri)model);
+				String expandedQuery = expandQuery(curr_scorelist, (RetrievalModelIndri)model, leafPool);
                 //System.out.println(" expanded query " + expandedQuery);
-                //System.out.println(" fbExpansionQueryFile " + ((RetrievalModelIndri)model).fbExpansionQueryFile);
-				expansion = new BufferedWriter(new FileWriter(((RetrievalModelIndri)model).fbExpansionQueryFile,true));
-				expansion.write(qid + ": " + expandedQuery + "\n");
-				expansion.close();
+				result.expandedQuery = expandedQuery;
 
                 double fbOrigWeight = ((RetrievalModelIndri)model).fbOrigWeight;
                 
 				
 				//System.out.println(qid + ": " + expandedQuery + "\n");
-				//expansion.close();
                 String originalQuery  = model.defaultQrySopName ()+ "(" + query + ")";
                 String combinedQuery = "#wand (" + String.valueOf(fbOrigWeight) + " " +originalQuery + " "
                         + String.valueOf(1 - fbOrigWeight) + " " + expandedQuery + " )";
@@ -686,25 +1053,10 @@ public class QryEval {
 			}
 		}
 		
-        ScoreList results = processQuery(query, model);
-        
-        if (results != null) { 
-          printResults(qid, results, trecEvalOutputPath, length);
-          System.out.println();
-        }
-        
-      }
-    } catch (IOException ex) {
-      ex.printStackTrace();
-    } finally {
-      input.close();
-      // check close
-      if(expansion != null)
-    	  expansion.close();
-
-    }
+        result.results = processQuery(query, model, length, leafPool);
+        return result;
   }
-  
+
   static Map<String, ScoreList> readInitialRankingFile(String fbInitialRankingFile) throws Exception{
       Map<String, ScoreList> scorelist_map = new HashMap<>();
       BufferedReader input = new BufferedReader(new FileReader(fbInitialRankingFile));
@@ -748,55 +1100,29 @@ public class QryEval {
   
 
   /**
-   * Print the query results.
-   * 
-   * STUDENTS:: 
-   * This is not the correct output format. You must change this method so
-   * that it outputs in the format specified in the homework page, which is:
-   * 
-   * QueryID Q0 DocID Rank Score RunID
-   * 
-   * @param queryName
-   *          Original query.
-   * @param result
-   *          A list of document ids and scores
-   * @throws IOException Error accessing the Lucene index.
+   *  Write the results of one query, and its expanded query, if any.
+   *  @param result The query's results
+   *  @param sink The destination of the results
+   *  @param length The number of documents to write
+   *  @param model The retrieval model, which names the expansion file
+   *  @throws IOException Error writing the files
    */
-  static void printResults(String queryName, ScoreList result, String path, int length) throws IOException {
-	  result.sort();
-      BufferedWriter output = new BufferedWriter(new FileWriter(path, true));
-	  int output_length;
-	  if(result.size() > length)
-		  output_length = length;
-	  else
-		  output_length = result.size();
-	  //System.out.println(queryName + ":  ");
-	  if (result.size() < 1) {
-		  //System.out.println("\tNo results.");
-		  String outstring = String.format("%s %s %s %d %f %s\n", queryName, "Q0", "dummy",
-				  1, 0.0, "run-1");
-		  System.out.println(outstring);
-		  output.write(outstring);
-	  } 
-	  else {
-		  for (int i = 0; i < output_length; i++) {
-	        //System.out.println("\t" + i + ":  " + Idx.getExternalDocid(result.getDocid(i)) + ", "
-	        //    + result.getDocidScore(i));
-			  BigDecimal longlonglong = new BigDecimal(result.getDocidScore(i));
-			  String outstring = String.format("%s\t%s\t%s\t%d\t%s\t%s\n",queryName, "Q0", 
-						Idx.getExternalDocid(result.getDocid(i)), i+1, longlonglong.toString(), "run-1");
-			  //String outstring = queryName + " Q0 "+ Idx.getExternalDocid(result.getDocid(i)) + " "
-			//		  + (i+1) + " " + result.getDocidScore(i) + " run-1\n";
-			  System.out.println(outstring);
-			  output.write(outstring);
-	      }
-	  }
-      output.close();
+  private static void writeQueryResult(QueryResult result, ResultSink sink,
+                                       int length, RetrievalModel model)
+      throws IOException {
+
+    if (result.expandedQuery != null) {
+      try (BufferedWriter expansion = new BufferedWriter(
+             new FileWriter(((RetrievalModelIndri)model).fbExpansionQueryFile, true))) {
+        expansion.write(result.qid + ": " + result.expandedQuery + "\n");
+      }
+    }
 
+    if (result.results != null) {
+      sink.write(result.qid, result.results, length);
+      System.out.println();
+    }
   }
-  
-  
-  
 
   /**
    *  Read the specified parameter file, and confirm that the required
@@ -833,11 +1159,13 @@ public class QryEval {
 
     //  Confirm that some of the essential parameters are present.
     //  This list is not complete.  It is just intended to catch silly
-    //  errors.
+    //  errors.  A server doesn't read or write query files.
+
+    boolean server = parameters.containsKey ("server");
 
     if (! (parameters.containsKey ("indexPath") &&
-           parameters.containsKey ("queryFilePath") &&
-           parameters.containsKey ("trecEvalOutputPath") &&
+           (server || parameters.containsKey ("queryFilePath")) &&
+           (server || parameters.containsKey ("trecEvalOutputPath")) &&
            parameters.containsKey ("retrievalAlgorithm"))) {
       throw new IllegalArgumentException
         ("Required parameters were missing from the parameter file.");
@@ -846,115 +1174,169 @@ public class QryEval {
     return parameters;
   }
   
-  // NEED TO COMPLETE
-  
-  private static String expandQuery(ScoreList scorelist, RetrievalModelIndri model) throws IOException{
-      StringBuilder expandedQuery = new StringBuilder("#wand (");
-	  Map<String, List<Integer>> term_doc_list = new HashMap<>();
-	  Map<String, Double> candidateTermScore = new HashMap<>();
-	  
-	  scorelist.truncate((int)model.fbDocs);
-	  
-	  // loop through  docs in scorelist
-	  //System.out.println(scorelist.size());
-	  //int limit = min(scorelist.size(),(int)model.fbDocs);
-	  //System.out.println(limit);
-	  for(int i = 0; i < scorelist.size(); i++) {
-		  int docid = scorelist.getDocid(i);
-		  double docscore = scorelist.getDocidScore(i);
-		  // Get the TermVector for this doc
-		  TermVector tv = new TermVector(docid, "body");
-		  // check 
-		  long doc_len = tv.positionsLength();
-		  for(int j = 0; j < tv.stemsLength(); j ++) {
-			  String term  = tv.stemString(j);
-			  if(term == null || term.contains(".") || term.contains(","))
-				  continue;
-			  if(term_doc_list.containsKey(term)) {
-				  //check
-				  //term_doc_list.get(term).add(docid);
-                  List<Integer> doc_list = term_doc_list.get(term);
-                  doc_list.add(docid);
-                  term_doc_list.put(term, doc_list);
-			  }
-			  else {
-                  List<Integer> doc_list = new ArrayList<>();
-                  doc_list.add(docid);
-                  term_doc_list.put(term, doc_list);
-			  }
-			  double tf = (double)tv.stemFreq(j);
-	          double ctf = (double)Idx.getTotalTermFreq("body", term);
-	          double collection_len = (double)Idx.getSumOfFieldLengths("body");
-	          // check double
-	          double mle = ctf / collection_len;
-	          double ptd = ( tf + model.fbMu * 1.0 * mle ) / (doc_len + model.fbMu);
-	          //System.out.println(ptd);
-	          double idf = Math.log(collection_len / ctf);
-	          double expansion_score = ptd * idf * docscore;
-	          //System.out.println(expansion_score);
-	          if(candidateTermScore.containsKey(term)) 
-	        	  candidateTermScore.put(term, expansion_score + candidateTermScore.get(term)); 
-	          else
-	        	  candidateTermScore.put(term, expansion_score); 
-		  }
-	  }
-	  for(String term : candidateTermScore.keySet()) {
-		  List<Integer> doc_list = term_doc_list.get(term);
-          for (int i = 0; i < scorelist.size(); i++) {
-              int docid = scorelist.getDocid(i);
-              if(doc_list.contains(docid))
-            	  continue;
-              double score = scorelist.getDocidScore(i);
-              //System.out.println(score);
-              double doc_len = Idx.getFieldLength("body", docid);
-              //System.out.println(doc_len);
-              double ctf = Idx.getTotalTermFreq("body", term);
-              //System.out.println(ctf);
-              double collection_len = Idx.getSumOfFieldLengths("body");
-              //System.out.println(collection_len);
-              double mle = ctf / collection_len;
-              //System.out.println(mle);
-              //System.out.println(model.fbMu);
-	          double ptd = ( 0.0 + model.fbMu * 1.0 * mle ) / (doc_len + model.fbMu * 1.0);
-	          //System.out.println("EQUALS");
-              //System.out.println(ptd);
-              double idf =  Math.log(collection_len / ctf);
-              double expansion_score = ptd * idf * score;
-              //System.out.println(expansion_score);
-              candidateTermScore.put(term, expansion_score + candidateTermScore.get(term));
-          }  
-	  }
-	  /*
-	  for(String term: candidateTermScore.keySet()) {
-		  System.out.println(term);
-		  System.out.println(candidateTermScore.get(term));
-	  }
-	  */
-	  List<Map.Entry<String, Double>> list = new ArrayList<>(candidateTermScore.entrySet());
-	  list.sort(Map.Entry.comparingByValue());
-	  Collections.reverse(list);
-	  /*
-	  for(String term: candidateTermScore.keySet()) {
-		  System.out.println(term);
-		  System.out.println(candidateTermScore.get(term));
-	  }
-	  */
-	  
-	  int termNum = 0;
-	  for (Map.Entry<String, Double> entry : list) {
-		  String term = entry.getKey();
-		  double score = entry.getValue();
-          expandedQuery.append(String.format("%.4f %s ", score, term));
-		  termNum += 1;
-	      if (termNum >= model.fbTerms)
-	        break;
-	    }
-	  
-      expandedQuery.append(")");
-      return expandedQuery.toString();
+  /**
+   *  Create an expansion query from the top documents of an initial
+   *  ranking (Indri pseudo relevance feedback).  Each candidate term's
+   *  score is the sum over the feedback documents of p(t|d) * idf(t) *
+   *  the document score, where p(t|d) is smoothed with fbMu.
+   *  <p>
+   *  Candidate terms are interned to dense ids, so the scores, the
+   *  per-term statistics, and a bitset of the documents that contain
+   *  each term are arrays.  ctf and the lengths are read once per term
+   *  and per document, and the top fbTerms terms are kept in a bounded
+   *  heap.  Scores are added in the same order as before (documents
+   *  that contain the term, then the others), so expansions don't
+   *  change.
+   *  </p>
+   *  @param scorelist The initial ranking, which is truncated to fbDocs.
+   *  @param model The retrieval model, which has the fb parameters.
+   *  @param pool The pool that reads the documents' term vectors, or null.
+   *  @return The expansion query, a #wand of the top terms.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static String expandQuery(ScoreList scorelist, RetrievalModelIndri model,
+                                    ForkJoinPool pool) throws IOException{
 
-	  
-	  
+	scorelist.truncate((int)model.fbDocs);
+
+	int numDocs = scorelist.size();
+	int words = (numDocs + 63) / 64;
+	double collection_len = (double)Idx.getSumOfFieldLengths("body");
+
+	//  Read the documents' term vectors (in parallel, if there is a
+	//  pool), without positions, which expansion doesn't use.
+
+	int[] docids = new int[numDocs];
+
+	for (int i = 0; i < numDocs; i++)
+		docids[i] = scorelist.getDocid(i);
+
+	TermVector[] tvs = TermVector.getTermVectors(docids, "body", false, pool);
+
+	//  Intern each document's candidate terms.  stemIds[i][j] is the
+	//  id of stem j of document i, or -1.  termIds is filled in
+	//  first-seen order, like the term table that it replaces, so its
+	//  iteration order breaks ties the same way.
+
+	Map<String, Integer> termIds = new HashMap<>();
+	List<String> terms = new ArrayList<>();
+	int[][] stemIds = new int[numDocs][];
+
+	for (int i = 0; i < numDocs; i++) {
+		TermVector tv = tvs[i];
+
+		stemIds[i] = new int[tv.stemsLength()];
+
+		for (int j = 0; j < tv.stemsLength(); j++) {
+			String term = tv.stemString(j);
+
+			if (term == null || term.contains(".") || term.contains(",")) {
+				stemIds[i][j] = -1;
+				continue;
+			}
+
+			Integer id = termIds.get(term);
+
+			if (id == null) {
+				id = terms.size();
+				termIds.put(term, id);
+				terms.add(term);
+			}
+
+			stemIds[i][j] = id;
+		}
+	}
+
+	//  Per-term and per-document statistics.
+
+	int numTerms = terms.size();
+	double[] muMle = new double[numTerms];		// fbMu * p(t|C)
+	double[] idf = new double[numTerms];
+
+	for (int t = 0; t < numTerms; t++) {
+		double ctf = (double)Idx.getTotalTermFreq("body", terms.get(t));
+
+		muMle[t] = model.fbMu * 1.0 * (ctf / collection_len);
+		idf[t] = Math.log(collection_len / ctf);
+	}
+
+	double[] docScores = new double[numDocs];
+	double[] matchDenominators = new double[numDocs];	// term vector length + fbMu
+	double[] missDenominators = new double[numDocs];	// field length + fbMu
+
+	for (int i = 0; i < numDocs; i++) {
+		docScores[i] = scorelist.getDocidScore(i);
+		matchDenominators[i] = tvs[i].positionsLength() + model.fbMu;
+		missDenominators[i] = Idx.getFieldLength("body", docids[i]) + model.fbMu * 1.0;
+	}
+
+	//  Documents that contain the term.
+
+	double[] scores = new double[numTerms];
+	long[] containing = new long[numTerms * words];
+
+	for (int i = 0; i < numDocs; i++) {
+		for (int j = 0; j < stemIds[i].length; j++) {
+			int t = stemIds[i][j];
+
+			if (t < 0)
+				continue;
+
+			double ptd = ((double)tvs[i].stemFreq(j) + muMle[t]) / matchDenominators[i];
+
+			scores[t] += ptd * idf[t] * docScores[i];
+			containing[t * words + i / 64] |= 1L << i;
+		}
+	}
+
+	//  Documents that don't contain the term.
+
+	for (int t = 0; t < numTerms; t++) {
+		for (int i = 0; i < numDocs; i++) {
+			if ((containing[t * words + i / 64] & (1L << i)) != 0)
+				continue;
+
+			double ptd = muMle[t] / missDenominators[i];
+
+			scores[t] += ptd * idf[t] * docScores[i];
+		}
+	}
+
+	//  Select the top terms.  Ties go to the term that is later in
+	//  termIds' iteration order.
+
+	int[] rank = new int[numTerms];
+	int r = 0;
+
+	for (int t : termIds.values())
+		rank[t] = r++;
+
+	int k = (int)Math.min(Math.max(model.fbTerms, 1), numTerms);
+	Comparator<Integer> worse = (t1, t2) -> {
+		int c = Double.compare(scores[t1], scores[t2]);
+		return (c != 0) ? c : Integer.compare(rank[t1], rank[t2]);
+	};
+	PriorityQueue<Integer> top = new PriorityQueue<>(Math.max(k, 1), worse);
+
+	for (int t = 0; t < numTerms; t++) {
+		if (top.size() < k) {
+			top.add(t);
+		} else if (worse.compare(t, top.peek()) > 0) {
+			top.poll();
+			top.add(t);
+		}
+	}
+
+	Integer[] best = top.toArray(new Integer[0]);
+	Arrays.sort(best, worse.reversed());
+
+	StringBuilder expandedQuery = new StringBuilder("#wand (");
+
+	for (int t : best)
+		expandedQuery.append(String.format("%.4f %s ", scores[t], terms.get(t)));
+
+	expandedQuery.append(")");
+	return expandedQuery.toString();
   }
   
 
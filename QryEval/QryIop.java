@@ -2,7 +2,11 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
-import java.util.Vector;
+import java.io.UncheckedIOException;
+import java.util.function.DoubleBinaryOperator;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.TermStates;
 
 /**
  *  All query operators that return inverted lists are subclasses of
@@ -13,7 +17,8 @@ import java.util.Vector;
  *  common to all query operators that return inverted lists.
  *  <p>
  *  After a QryIop operator is initialized, it caches a full inverted
- *  list, and information from the inverted list is accessible.  Document
+ *  list (except QryIopTerm, which streams its postings from the index),
+ *  and information from the inverted list is accessible.  Document
  *  and location information are accessed via Qry.docIterator and
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
@@ -28,6 +33,16 @@ import java.util.Vector;
  */
 public abstract class QryIop extends Qry {
 
+  /**
+   *  The results of evaluating an operator that has several copies in
+   *  a query:  the inverted list of an operator that builds one, or
+   *  the index statistics and term states of a term.
+   */
+  static class Shared {
+    InvList invertedList = null;
+    TermStates termStates = null;
+  }
+
   /*
    *  IMPLEMENTATION NOTES:
    * 
@@ -53,6 +68,51 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  The segment of the index that the inverted list covers, or null
+   *  for the whole index (see setLeaf).
+   */
+  protected LeafReaderContext leaf = null;
+
+  /**
+   *  The df and ctf of the whole index, if the inverted list covers
+   *  one segment and they were set by setCollectionStatistics.
+   *  Otherwise, getDf and getCtf count the inverted list.
+   */
+  private boolean hasCollectionStatistics = false;
+  private int collectionDf;
+  private int collectionCtf;
+
+  /**
+   *  True if a parent query operator reads the locations of this
+   *  operator's matches via the locIterator.  Operators that read
+   *  their inverted lists lazily may skip decoding locations if no
+   *  parent needs them.
+   */
+  protected boolean positionsRequired = false;
+
+  /**
+   *  True if a parent query operator uses block-max bounds (see
+   *  docIteratorAdvanceShallow).  Operators that read their inverted
+   *  lists lazily may need to read extra data to provide them.
+   */
+  protected boolean impactsRequired = false;
+
+  /**
+   *  The evaluation that identical copies of this operator in the same
+   *  query share (see QryParser.shareSubexpressions), or null if the
+   *  operator appears once.  The first copy that is initialized
+   *  evaluates the operator, and the others reuse the result.  Each
+   *  copy keeps its own docIterator and locIterator.
+   */
+  Shared shared = null;
+
+  /**
+   *  The block that docIteratorAdvanceShallow found, or -1 if there
+   *  are no more postings.
+   */
+  private int shallowBlock = -1;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -70,25 +130,46 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (docid < Integer.MAX_VALUE) {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
+    } else {
+      this.docIteratorIndex = this.invertedList.df;
     }
            
     this.locIteratorIndex = 0;
   }
 
+  /**
+   *  Find the block of postings that contains the first document at
+   *  or after the specified document, without moving the docIterator.
+   *  getBlockMaxScore then bounds the scores of the block's documents.
+   *  @param docid The document's internal document id
+   *  @return The last docid that the block covers, or Integer.MAX_VALUE.
+   */
+  public int docIteratorAdvanceShallow (int docid) {
+
+    int n = this.invertedList.findDocid (this.docIteratorIndex, docid);
+
+    if (n >= this.invertedList.df) {
+      this.shallowBlock = -1;
+      return Integer.MAX_VALUE;
+    }
+
+    this.shallowBlock = n / InvList.SKIP_INTERVAL;
+    return this.invertedList.getBlockLastDocid (this.shallowBlock);
+  }
+
   /**
    *  Advance the query operator's internal iterator to the specified
-   *  document if it exists, or beyond if it doesn't.
+   *  document if it exists, or beyond if it doesn't.  The inverted
+   *  list is searched, not scanned, so skipping far ahead is cheap.
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
-    }
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
     this.locIteratorIndex = 0;
   }
@@ -98,7 +179,7 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -113,12 +194,13 @@ public abstract class QryIop extends Qry {
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency (tf) of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't point
+   *  at a document.
+   *  @return The document's term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -130,6 +212,29 @@ public abstract class QryIop extends Qry {
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
+  /**
+   *  Get an upper bound on score (tf, length) for the documents in
+   *  the block that docIteratorAdvanceShallow found.  The score must
+   *  grow with tf and shrink with length.  A document is at least as
+   *  long as its tf, so the bound is score (maxTf, max (maxTf, minLength)).
+   *  @param score A scoring function of tf and field length.
+   *  @return The bound, or negative infinity if the block is empty.
+   */
+  public double getBlockMaxScore (DoubleBinaryOperator score) {
+
+    if (this.shallowBlock < 0)
+      return Double.NEGATIVE_INFINITY;
+
+    try {
+      double maxTf = this.invertedList.getBlockMaxTf (this.shallowBlock);
+      double minLength = this.invertedList.getBlockMinLength (this.shallowBlock);
+
+      return score.applyAsDouble (maxTf, Math.max (maxTf, minLength));
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
@@ -137,6 +242,9 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
+    if (this.hasCollectionStatistics)
+      return this.collectionCtf;
+
     return this.invertedList.ctf;
   }
 
@@ -147,6 +255,9 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
+    if (this.hasCollectionStatistics)
+      return this.collectionDf;
+
     return this.invertedList.df;
   }
 
@@ -173,15 +284,51 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    //  An operator that was evaluated for one segment, and then given
+    //  the statistics of the whole index, is ready.
+
+    if (this.hasCollectionStatistics) {
+      this.docIteratorIndex = 0;
+      this.locIteratorIndex = 0;
+      return;
+    }
+
+    //  Operators that combine arguments (e.g., #SYN, #NEAR/n) may find
+    //  their inverted lists in another copy of the operator, or in the
+    //  cache.  Terms stream their postings.
+
+    InvList cached = null;
+
+    if (! this.args.isEmpty ()) {
+      if (this.shared != null)
+        cached = this.shared.invertedList;
 
-    for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
+      if (cached == null)
+        cached = InvListCache.get (this);
     }
 
-    //  Evaluate the operator.
-    
-    this.evaluate ();
+    if (cached != null) {
+      this.invertedList = cached;
+    } else {
+
+      //  Initialize the query arguments (if any).  QryIop operators
+      //  combine the locations of their arguments.
+
+      for (Qry q_i: this.args) {
+        ((QryIop) q_i).positionsRequired = true;
+        ((QryIop) q_i).initialize (r);
+      }
+
+      //  Evaluate the operator.
+
+      this.evaluate ();
+
+      if (! this.args.isEmpty ())
+        InvListCache.put (this, this.invertedList);
+    }
+
+    if ((this.shared != null) && (! this.args.isEmpty ()))
+      this.shared.invertedList = this.invertedList;
 
     //  Initialize the internal iterators.
 
@@ -203,11 +350,11 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.getTf (this.docIteratorIndex);
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (this.invertedList.getPosition (this.docIteratorIndex,
+                                           this.locIteratorIndex) <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -218,7 +365,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish () {
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -229,8 +376,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -243,6 +390,30 @@ public abstract class QryIop extends Qry {
             this.invertedList.getTf (this.docIteratorIndex));
   }
   
+  /**
+   *  Set the df and ctf of the whole index, for an operator whose
+   *  inverted list covers one segment (see setLeaf).  The operator has
+   *  been initialized, and isn't evaluated again when it is
+   *  initialized the next time.
+   *  @param df The document frequency (df) in the whole index.
+   *  @param ctf The collection term frequency (ctf) in the whole index.
+   */
+  public void setCollectionStatistics (int df, int ctf) {
+    this.hasCollectionStatistics = true;
+    this.collectionDf = df;
+    this.collectionCtf = ctf;
+  }
+
+  /**
+   *  Restrict the operator and its arguments to one segment of the
+   *  index.
+   *  @param leaf The segment, or null for the whole index.
+   */
+  public void setLeaf (LeafReaderContext leaf) {
+    this.leaf = leaf;
+    super.setLeaf (leaf);
+  }
+
   public InvList getInvertedList() {
 	  return this.invertedList;
 	  
@@ -263,10 +434,10 @@ public abstract class QryIop extends Qry {
 			double ctf = (this.getCtf());	
 			//double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
 			
-			double tf = (this.invertedList.postings.get(this.docIteratorIndex).tf);
+			double tf = this.docIteratorGetMatchTf();
 			//double tf2 = ((QryIop)q).getInvertedList().postings.get(q.docIteratorGetMatch()).tf;
 			
-			double doc_len = Idx.getFieldLength(this.field, this.invertedList.getDocid (this.docIteratorIndex));
+			double doc_len = Idx.getFieldLength(this.field, this.docIteratorGetMatch());
 			//double doc_len = Idx.getFieldLength(field, ((QryIop)q).getInvertedList().getDocid(((QryIop)q).docIteratorIndex));
 			
 			double collection_len = Idx.getSumOfFieldLengths(this.field);
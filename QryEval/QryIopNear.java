@@ -2,7 +2,6 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
-import java.util.ArrayList;
 
 /**
  *  The NEAR operator for all retrieval models.  The TERM operator stores
@@ -47,7 +46,7 @@ public class QryIopNear extends QryIop{
         while(this.docIteratorHasMatchAll(null)) {
         	QryIop first_term = (QryIop)this.getArg(0);
         	int doc_id = first_term.docIteratorGetMatch();
-            ArrayList<Integer> postings = new ArrayList<>();
+            this.invertedList.startPosting(doc_id);
             while(first_term.locIteratorHasMatch()) {//first term match loop
             	int prev_loc = first_term.locIteratorGetMatch();
             	int i;
@@ -66,7 +65,7 @@ public class QryIopNear extends QryIop{
             		
             	}// loop through all other terms to check match & distance
             	if(i == this.args.size()) {//complete loop through all the terms
-            		postings.add(prev_loc);
+            		this.invertedList.addPosition(prev_loc);
             		for(Qry q:this.args)
             			((QryIop)q).locIteratorAdvance();
             	}
@@ -74,8 +73,7 @@ public class QryIopNear extends QryIop{
             		first_term.locIteratorAdvance();  		
             }// first term loop	
             
-            if(!postings.isEmpty())
-            	this.invertedList.appendPosting(doc_id, postings);
+            this.invertedList.finishPosting();
             
             this.getArg(0).docIteratorAdvancePast(doc_id);
         	
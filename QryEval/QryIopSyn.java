@@ -2,10 +2,6 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Vector;
 
 /**
  *  The SYN operator for all retrieval models.
@@ -52,24 +48,28 @@ public class QryIopSyn extends QryIop {
         break;				// All docids have been processed.  Done.
       
       //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
+      //  that match the minDocid.  Save it.  The inverted list sorts
+      //  the locations when the posting is finished.
       //  Note:  This implementation assumes that a location will not appear
       //  in two or more arguments.  #SYN (apple apple) would break it.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      this.invertedList.startPosting (minDocid);
 
       for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null) &&
             (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
+          QryIop q_iIop = (QryIop) q_i;
+
+          while (q_iIop.locIteratorHasMatch ()) {
+            this.invertedList.addPosition (q_iIop.locIteratorGetMatch ());
+            q_iIop.locIteratorAdvance ();
+          }
+
           q_i.docIteratorAdvancePast (minDocid);
 	}
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      this.invertedList.finishPosting ();
     }
   }
 
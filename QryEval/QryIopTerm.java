@@ -2,6 +2,23 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.Impacts;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
 
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
@@ -9,12 +26,65 @@ import java.io.IOException;
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  Unlike other QryIop operators, the TERM operator does not cache a
+ *  full inverted list.  Its docIterator streams the postings of each
+ *  Lucene segment in turn, and uses Lucene's skip data to advance.
+ *  The df and ctf are taken from the index statistics.  Locations are
+ *  decoded only when a parent query operator asks for them.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  The Lucene term, its state in each segment (where its postings
+   *  are), the segments of the index, and the postings of the segment
+   *  that the docIterator is in now.  postings is null when the
+   *  docIterator is exhausted.
+   */
+  private Term luceneTerm;
+  private TermStates termStates;
+  private List<LeafReaderContext> leaves;
+  private int leafIndex;
+  private int leafDocBase;
+  private int leafEndDocid;
+  private PostingsEnum postings;
+
+  /**
+   *  If block-max bounds are required, the postings are read with
+   *  Lucene's impacts, which record the competitive (tf, length)
+   *  pairs of each block of postings.  impacts is the same object as
+   *  postings.  shallowImpacts are the pairs of the block that
+   *  docIteratorAdvanceShallow found; null means that the block is
+   *  empty, and shallowUnknown means that the block is in a segment
+   *  that isn't open, so only the term's global bound applies.
+   */
+  private ImpactsEnum impacts;
+  private List<Impact> shallowImpacts;
+  private boolean shallowUnknown;
+
+  /**
+   *  The internal docid that the docIterator points to now.
+   */
+  private int currentDocid = DocIdSetIterator.NO_MORE_DOCS;
+
+  /**
+   *  Corpus statistics from the index.
+   */
+  private int df;
+  private int ctf;
+
+  /**
+   *  The locations of the current document, which are decoded on
+   *  demand, and the locIterator's index into them.
+   */
+  private int[] locations = new int[16];
+  private int locationsDocid = Qry.INVALID_DOCID;
+  private int locationsLength = 0;
+  private int locIteratorIndex = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,16 +105,396 @@ public class QryIopTerm extends QryIop {
   }
 
   /**
-   *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  Advance the query operator's internal iterator to the first
+   *  document that is at or beyond the specified document, moving to
+   *  later segments as necessary.
+   *  @param docid The document's internal document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void advanceToDocid (int docid) throws IOException {
+
+    while (this.postings != null) {
+
+      if (docid < this.leafEndDocid) {
+        int leafDocid = Math.max (docid - this.leafDocBase, 0);
+        int d = this.postings.docID ();
+
+        if (d < leafDocid) {
+          d = this.postings.advance (leafDocid);
+        }
+
+        if (d != DocIdSetIterator.NO_MORE_DOCS) {
+          this.currentDocid = this.leafDocBase + d;
+          return;
+        }
+      }
+
+      this.openNextLeaf (docid);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (docid < Integer.MAX_VALUE) {
+      this.docIteratorAdvanceTo (docid + 1);
+    } else {
+      this.docIteratorFinish ();
+    }
+  }
+
+  /**
+   *  Find the block of postings that contains the first document at
+   *  or after the specified document, without moving the docIterator.
+   *  @param docid The document's internal document id
+   *  @return The last docid that the block covers, or Integer.MAX_VALUE.
+   */
+  public int docIteratorAdvanceShallow (int docid) {
+
+    this.shallowImpacts = null;
+    this.shallowUnknown = false;
+
+    if (this.postings == null)
+      return Integer.MAX_VALUE;
+
+    int target = Math.max (docid, this.currentDocid);
+
+    if ((this.impacts == null) || (target >= this.leafEndDocid)) {
+      this.shallowUnknown = true;
+      return target;
+    }
+
+    try {
+      this.impacts.advanceShallow (target - this.leafDocBase);
+
+      Impacts blocks = this.impacts.getImpacts ();
+      int upTo = blocks.getDocIdUpTo (0);
+
+      this.shallowImpacts = blocks.getImpacts (0);
+
+      if (upTo == DocIdSetIterator.NO_MORE_DOCS)
+        return this.leafEndDocid - 1;
+      else
+        return this.leafDocBase + upTo;
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+
+    if (docid > this.currentDocid) {
+      try {
+        this.advanceToDocid (docid);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+
+    this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    this.postings = null;
+    this.impacts = null;
+    this.leafIndex = this.leaves.size ();
+    this.currentDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.  Use docIteratorHasMatch to determine whether
+   *  the iterator currently points to a document.  If the iterator
+   *  doesn't point to a document, an invalid document id is returned.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    return this.currentDocid;
+  }
+
+  /**
+   *  Return the term frequency (tf) of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    return (this.postings != null);
+  }
+
+  /**
+   *  Prepare to stream the term's postings.  The postings are not
+   *  read until the docIterator is used.  The term is looked up in
+   *  each segment's dictionary once, and copies of the term in the
+   *  same query (or in copies of the query) share the lookup.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    this.luceneTerm = new Term (this.field, new BytesRef (this.term));
+
+    //  Copies of the query that search different segments at the same
+    //  time may share the lookup, so it is synchronized.
+
+    if (this.shared == null) {
+      this.termStates = TermStates.build (Idx.INDEXREADER.getContext (), this.luceneTerm, true);
+    } else {
+      synchronized (this.shared) {
+        if (this.shared.termStates == null)
+          this.shared.termStates = TermStates.build (Idx.INDEXREADER.getContext (), this.luceneTerm, true);
+
+        this.termStates = this.shared.termStates;
+      }
+    }
+
+    //  The df and ctf are from the whole index, even if the docIterator
+    //  covers one segment.
+
+    this.df = this.termStates.docFreq ();
+    this.ctf = (int) this.termStates.totalTermFreq ();
+    this.leaves = (this.leaf == null) ?
+      Idx.INDEXREADER.leaves () : Collections.singletonList (this.leaf);
+    this.leafIndex = -1;
+    this.locationsDocid = Qry.INVALID_DOCID;
+    this.locIteratorIndex = 0;
+
+    //  Position the docIterator on the first matching document.
+
+    if (this.df > 0 && this.openNextLeaf (0)) {
+      this.advanceToDocid (0);
+    } else {
+      this.docIteratorFinish ();
+    }
+  }
+
+  /**
+   *  Get an upper bound on score (tf, length) for the documents in
+   *  the block that docIteratorAdvanceShallow found.
+   *  @param score A scoring function of tf and field length.
+   *  @return The bound, or negative infinity if the block is empty.
+   */
+  public double getBlockMaxScore (DoubleBinaryOperator score) {
+
+    if (this.shallowUnknown) {
+
+      //  No tf is larger than ctf - df + 1.
+
+      try {
+        double maxTf = this.ctf - this.df + 1;
+        double minLength = Idx.getMinFieldLength (this.field);
+
+        return score.applyAsDouble (maxTf, Math.max (maxTf, minLength));
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+
+    if (this.shallowImpacts == null)
+      return Double.NEGATIVE_INFINITY;
+
+    double max = Double.NEGATIVE_INFINITY;
+
+    for (Impact impact : this.shallowImpacts)
+      max = Math.max (max, score.applyAsDouble (impact.freq, impact.norm));
+
+    return max;
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    return this.ctf;
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    return this.df;
+  }
+
+  /**
+   *  Get the full inverted list of the term.  The TERM operator does
+   *  not cache its inverted list, so it is read from the index, unless
+   *  it is in the InvListCache.
+   *  @return The inverted list, which must not be changed.
+   */
+  public InvList getInvertedList () {
+    try {
+      InvList list = InvListCache.get (this);
+
+      if (list == null) {
+        list = new InvList (this.term, this.field);
+        InvListCache.put (this, list);
+      }
+
+      return list;
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Decode the locations of the current document, if that has not
+   *  been done already.
+   */
+  private void loadLocations () {
+
+    if (this.locationsDocid == this.currentDocid) {
+      return;
+    }
+
+    try {
+      int tf = this.postings.freq ();
+
+      if (tf > this.locations.length) {
+        this.locations = Arrays.copyOf (this.locations,
+                                        Math.max (tf, this.locations.length * 2));
+      }
+
+      for (int i = 0; i < tf; i++) {
+        this.locations[i] = this.postings.nextPosition ();
+      }
+
+      this.locationsLength = tf;
+      this.locationsDocid = this.currentDocid;
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the
+   *  next location.
+   */
+  public void locIteratorAdvance () {
+    this.locIteratorIndex ++;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified location.
+   *  @param loc The location to advance beyond.
+   */
+  public void locIteratorAdvancePast (int loc) {
+    this.loadLocations ();
+
+    while ((this.locIteratorIndex < this.locationsLength) &&
+           (this.locations[this.locIteratorIndex] <= loc)) {
+      this.locIteratorIndex ++;
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond
+   *  any possible location.
+   */
+  public void locIteratorFinish () {
+    this.loadLocations ();
+    this.locIteratorIndex = this.locationsLength;
+  }
+
+  /**
+   *  Return the document location that the query operator's internal
+   *  iterator points to now.
+   *  @return The current location.
+   */
+  public int locIteratorGetMatch () {
+    this.loadLocations ();
+    return this.locations[this.locIteratorIndex];
+  }
+
+  /**
+   *  Returns true if the query operator's internal iterator currently
+   *  points to a location.
+   *  @return True if the iterator currently points to a location.
+   */
+  public boolean locIteratorHasMatch () {
+    this.loadLocations ();
+    return (this.locIteratorIndex < this.locationsLength);
+  }
+
+  /**
+   *  Open the postings of the next segment that may contain documents
+   *  at or beyond the specified document.  Segments that end before
+   *  the document, or that don't contain the term, are skipped.
+   *  @param docid An internal document id.
+   *  @return True if a segment was opened, false if there are no more.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private boolean openNextLeaf (int docid) throws IOException {
+
+    int flags = (this.positionsRequired) ?
+      PostingsEnum.POSITIONS : PostingsEnum.FREQS;
+
+    this.postings = null;
+    this.impacts = null;
+
+    while (++ this.leafIndex < this.leaves.size ()) {
+      LeafReaderContext leaf = this.leaves.get (this.leafIndex);
+      int leafEndDocid = leaf.docBase + leaf.reader ().maxDoc ();
+
+      if (leafEndDocid <= docid) {
+        continue;
+      }
+
+      //  The term state locates the postings without another
+      //  dictionary lookup.
+
+      TermState state = this.termStates.get (leaf);
+
+      if (state == null) {
+        continue;
+      }
+
+      TermsEnum termsEnum = leaf.reader ().terms (this.field).iterator ();
+      termsEnum.seekExact (this.luceneTerm.bytes (), state);
+
+      if (this.impactsRequired) {
+        this.impacts = termsEnum.impacts (flags);
+        this.postings = this.impacts;
+      } else {
+        this.postings = termsEnum.postings (null, flags);
+      }
+
+      this.leafDocBase = leaf.docBase;
+      this.leafEndDocid = leafEndDocid;
+      return true;
+    }
+
+    this.currentDocid = DocIdSetIterator.NO_MORE_DOCS;
+    return false;
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
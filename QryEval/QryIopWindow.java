@@ -2,7 +2,6 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
-import java.util.ArrayList;
 
 /**
  *  The NEAR operator for all retrieval models.  The TERM operator stores
@@ -49,7 +48,7 @@ public class QryIopWindow extends QryIop{
         	
         	QryIop first_term = (QryIop)this.getArg(0);
         	int doc_id = first_term.docIteratorGetMatch();
-            ArrayList<Integer> postings = new ArrayList<>();
+            this.invertedList.startPosting(doc_id);
             
             while(true) {
             	int loc_min = Integer.MAX_VALUE;
@@ -75,7 +74,7 @@ public class QryIopWindow extends QryIop{
             	
             	if(i == this.args.size()) {
             		if(loc_max-loc_min < this.distance) {
-                		postings.add(loc_max);
+                		this.invertedList.addPosition(loc_max);
                 		for(Qry q:this.args)
                 			((QryIop)q).locIteratorAdvance();
             		}
@@ -88,8 +87,7 @@ public class QryIopWindow extends QryIop{
             }
 
             
-            if(!postings.isEmpty())
-            	this.invertedList.appendPosting(doc_id, postings);
+            this.invertedList.finishPosting();
             
             this.getArg(0).docIteratorAdvancePast(doc_id);
         	
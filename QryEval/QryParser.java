@@ -5,7 +5,9 @@
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.en.EnglishAnalyzerConfigurable;
@@ -193,6 +195,21 @@ public class QryParser {
   }
 
 
+  /**
+   *  Collect the inverted list operators of a query, grouped by their
+   *  string versions, which identify them.
+   *  @param q A query.
+   *  @param copies The operators found so far.
+   */
+  private static void findSubexpressions (Qry q, Map<String, List<QryIop>> copies) {
+
+    if (q instanceof QryIop)
+      copies.computeIfAbsent (q.toString (), k -> new ArrayList<QryIop> ()).add ((QryIop) q);
+
+    for (Qry q_i : q.args)
+      findSubexpressions (q_i, copies);
+  }
+
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style
@@ -206,6 +223,10 @@ public class QryParser {
 
     Qry q = parseString (queryString);		// An exact parse
     q = optimizeQuery (q);			// An optimized parse
+
+    if (q != null)
+      shareSubexpressions (q);			// Evaluate repeats once
+
     return q;
   }
 
@@ -433,6 +454,54 @@ public class QryParser {
   }
 
     
+  /**
+   *  Find the inverted list operators (terms, #SYN, #NEAR/n, etc)
+   *  that appear more than once in a query, for example, an original
+   *  query term that is also an expansion term.  The copies of each
+   *  share one evaluation (see QryIop.shared), so the query is
+   *  evaluated as a DAG, although it is still a tree.
+   *  @param q The optimized query.
+   */
+  private static void shareSubexpressions (Qry q) {
+
+    Map<String, List<QryIop>> copies = new HashMap<String, List<QryIop>> ();
+
+    findSubexpressions (q, copies);
+
+    for (List<QryIop> operators : copies.values ()) {
+      if (operators.size () > 1) {
+        QryIop.Shared shared = new QryIop.Shared ();
+
+        for (QryIop op : operators)
+          op.shared = shared;
+      }
+    }
+  }
+
+  /**
+   *  Let copies of a query (e.g., one per segment of the index) share
+   *  the lookups of their terms (see QryIop.shared).  Operators that
+   *  build inverted lists are not shared, because the copies may
+   *  cover different documents.
+   *  @param queries The copies, which have not been initialized.
+   */
+  public static void shareTerms (List<Qry> queries) {
+
+    Map<String, List<QryIop>> copies = new HashMap<String, List<QryIop>> ();
+
+    for (Qry q : queries)
+      findSubexpressions (q, copies);
+
+    for (List<QryIop> operators : copies.values ()) {
+      if ((operators.size () > 1) && (operators.get (0) instanceof QryIopTerm)) {
+        QryIop.Shared shared = new QryIop.Shared ();
+
+        for (QryIop op : operators)
+          op.shared = shared;
+      }
+    }
+  }
+
   /**
    *  Throw an error specialized for query parsing syntax errors.
    *  @param errorString The string "Syntax
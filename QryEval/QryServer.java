@@ -0,0 +1,312 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ *  A long-lived query server.  The index is opened once, and Idx's
+ *  caches (external ids, field lengths, etc.) stay warm from one
+ *  query to the next, so the cost of a query is just its evaluation.
+ *  <p>
+ *  Each request is one line, and each response is zero or more
+ *  trec_eval lines followed by an empty line.  A request is a query
+ *  in query file format, optionally preceded by parameters that
+ *  override the parameter file for that query, and a tab:
+ *  </p>
+ *  <pre>
+ *    retrievalAlgorithm=bm25 BM25:k_1=1.5 trecEvalOutputLength=10&lt;TAB&gt;71:eggs
+ *  </pre>
+ *  <p>
+ *  A request that fails gets the response "ERROR message".  Requests
+ *  are evaluated concurrently, but the responses on a connection are
+ *  in the order of its requests.  Query expansion runs its own initial
+ *  ranking (fbInitialRankingFile is ignored), and expanded queries are
+ *  not written to a file.
+ *  </p>
+ */
+public class QryServer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of requests on a connection that may be evaluated
+   *  before their responses are written.
+   */
+  private static final int PIPELINE_DEPTH = 64;
+
+  /**
+   *  The number of distinct retrieval models that are kept.  Requests
+   *  with other parameters create their models as needed.
+   */
+  private static final int MAX_MODELS = 256;
+
+  private final Map<String, String> defaults;
+  private final ForkJoinPool leafPool;
+  private final ScoreFormat scoreFormat;
+  private final ConcurrentHashMap<String, RetrievalModel> models =
+    new ConcurrentHashMap<String, RetrievalModel> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.  The index must be open.
+   *  @param parameters The parameters of the parameter file, which are
+   *     the defaults for each request.
+   *  @param leafPool The pool that searches segments, or null.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QryServer (Map<String, String> parameters, ForkJoinPool leafPool)
+    throws IOException {
+
+    this.defaults = new HashMap<String, String> (parameters);
+    this.leafPool = leafPool;
+    this.scoreFormat = ScoreFormat.forName (parameters.get ("scoreFormat"));
+
+    this.getModel (this.defaults);	// Report bad parameters now
+  }
+
+  /**
+   *  Get the retrieval model for a set of parameters.
+   *  @param parameters The parameters of a request.
+   *  @return The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private RetrievalModel getModel (Map<String, String> parameters)
+    throws IOException {
+
+    String key = new TreeMap<String, String> (parameters).toString ();
+    RetrievalModel model = this.models.get (key);
+
+    if (model == null) {
+      model = QryEval.createRetrievalModel (parameters);
+
+      if (model instanceof RetrievalModelLetor)
+        throw new IllegalArgumentException ("The server does not support letor.");
+
+      if (this.models.size () < MAX_MODELS) {
+        RetrievalModel previous = this.models.putIfAbsent (key, model);
+
+        if (previous != null)
+          model = previous;
+      }
+    }
+
+    return model;
+  }
+
+  /**
+   *  Evaluate one request.
+   *  @param request A request line.
+   *  @return The response, which ends with an empty line.
+   */
+  public String handle (String request) {
+
+    StringWriter response = new StringWriter ();
+
+    try {
+      Map<String, String> parameters = this.defaults;
+      String qLine = request;
+      int tab = request.indexOf ('\t');
+
+      if (tab >= 0) {
+        parameters = new HashMap<String, String> (this.defaults);
+
+        for (String option : request.substring (0, tab).trim ().split ("\\s+")) {
+          if (option.isEmpty ())
+            continue;
+
+          int equals = option.indexOf ('=');
+
+          if (equals <= 0)
+            throw new IllegalArgumentException ("Expected key=value, not " + option);
+
+          parameters.put (option.substring (0, equals), option.substring (equals + 1));
+        }
+
+        qLine = request.substring (tab + 1);
+      }
+
+      int length = parameters.containsKey ("trecEvalOutputLength") ?
+        Integer.parseInt (parameters.get ("trecEvalOutputLength")) : 100;
+      RetrievalModel model = this.getModel (parameters);
+      QryEval.QueryResult result =
+        QryEval.processQueryLine (qLine.trim (), model, length, null, this.leafPool);
+
+      if (result.results != null)
+        new TrecResultSink (response, false, this.scoreFormat)
+          .write (result.qid, result.results, length);
+
+    } catch (Exception ex) {
+      String message = String.valueOf (ex.getMessage ()).replace ('\n', ' ');
+
+      response.getBuffer ().setLength (0);
+      response.write ("ERROR " + ex.getClass ().getSimpleName () + ": " + message + "\n");
+    }
+
+    response.write ("\n");
+    return response.toString ();
+  }
+
+  /**
+   *  Answer the requests of one client.  Requests are evaluated on
+   *  the evaluator, and a separate thread writes their responses in
+   *  order, as soon as they are ready.
+   *  @param in The client's requests.
+   *  @param out The client's responses.
+   *  @param evaluator The pool that evaluates requests.
+   *  @throws IOException Error reading a request.
+   *  @throws InterruptedException The server is shutting down.
+   */
+  private void serve (BufferedReader in, Writer out, ExecutorService evaluator)
+    throws IOException, InterruptedException {
+
+    BlockingQueue<Future<String>> responses =
+      new ArrayBlockingQueue<Future<String>> (PIPELINE_DEPTH);
+    Thread writer = new Thread (() -> writeResponses (responses, out));
+
+    writer.setDaemon (true);
+    writer.start ();
+
+    try {
+      String line;
+
+      while ((line = in.readLine ()) != null) {
+        if (line.trim ().isEmpty ())
+          continue;
+
+        final String request = line;
+        responses.put (evaluator.submit (() -> this.handle (request)));
+      }
+    } finally {
+      responses.put (CompletableFuture.completedFuture (null));	// End
+      writer.join ();
+    }
+  }
+
+  /**
+   *  Serve one client on stdin and stdout.  Console messages are
+   *  redirected to System.err, so that stdout has only responses.
+   *  @param numThreads The number of requests to evaluate at the same time.
+   *  @throws IOException Error reading a request.
+   *  @throws InterruptedException The server is shutting down.
+   */
+  public void serveStdin (int numThreads)
+    throws IOException, InterruptedException {
+
+    PrintStream stdout = System.out;
+    ExecutorService evaluator = Executors.newFixedThreadPool (numThreads);
+
+    System.setOut (System.err);
+
+    try {
+      this.serve (new BufferedReader (new InputStreamReader (System.in, StandardCharsets.UTF_8)),
+                  new BufferedWriter (new OutputStreamWriter (stdout, StandardCharsets.UTF_8)),
+                  evaluator);
+    } finally {
+      evaluator.shutdownNow ();
+      System.setOut (stdout);
+    }
+  }
+
+  /**
+   *  Serve clients on a local (loopback) socket until the process is
+   *  stopped.  Each connection is a client.
+   *  @param port The port, or 0 for any free port.
+   *  @param numThreads The number of requests to evaluate at the same time.
+   *  @throws IOException Error opening the socket.
+   */
+  public void serveSocket (int port, int numThreads) throws IOException {
+
+    ExecutorService evaluator = Executors.newFixedThreadPool (numThreads);
+    ExecutorService connections = Executors.newCachedThreadPool ();
+
+    try (ServerSocket serverSocket =
+           new ServerSocket (port, 50, InetAddress.getLoopbackAddress ())) {
+
+      System.out.println ("Listening on " + serverSocket.getLocalSocketAddress ());
+
+      while (true) {
+        Socket socket = serverSocket.accept ();
+
+        connections.execute (() -> {
+          try (Socket s = socket) {
+            this.serve (
+              new BufferedReader (new InputStreamReader (s.getInputStream (), StandardCharsets.UTF_8)),
+              new BufferedWriter (new OutputStreamWriter (s.getOutputStream (), StandardCharsets.UTF_8)),
+              evaluator);
+          } catch (IOException | InterruptedException ex) {
+            System.err.println ("Connection closed: " + ex.getMessage ());
+          }
+        });
+      }
+    } finally {
+      connections.shutdownNow ();
+      evaluator.shutdownNow ();
+    }
+  }
+
+  /**
+   *  Write responses in order until the end marker (null).  If the
+   *  client goes away, later responses are discarded, so that the
+   *  reader is never blocked.
+   *  @param responses The responses, in request order.
+   *  @param out The client's responses.
+   */
+  private static void writeResponses (BlockingQueue<Future<String>> responses, Writer out) {
+
+    boolean open = true;
+
+    while (true) {
+      String response;
+
+      try {
+        response = responses.take ().get ();
+      } catch (InterruptedException ex) {
+        return;
+      } catch (ExecutionException ex) {
+        response = "ERROR " + ex.getCause () + "\n\n";
+      }
+
+      if (response == null)
+        break;
+
+      if (open) {
+        try {
+          out.write (response);
+          out.flush ();
+        } catch (IOException ex) {
+          open = false;
+        }
+      }
+    }
+
+    try {
+      out.flush ();
+    } catch (IOException ex) {
+      //  The client is gone.
+    }
+  }
+}
@@ -14,18 +14,162 @@ import java.io.IOException;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  The scoring method of a query operator for one retrieval model.
+   *  Retrieval models provide scorers for the operators that they
+   *  support (see RetrievalModel.getScorer).
+   */
+  public interface Scorer {
+
+    /**
+     *  Get a score for the document that docIteratorHasMatch matched.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double getScore (RetrievalModel r) throws IOException;
+
+    /**
+     *  Get a score for a document that the query operator doesn't
+     *  match.  Models that don't score such documents return 0.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid The internal id of the document.
+     *  @return The default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    default double getDefaultScore (RetrievalModel r, long docid)
+      throws IOException {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  The scorer for the retrieval model that the query operator was
+   *  initialized with.  It is chosen once per query, so getScore
+   *  doesn't test the retrieval model for every document.
+   */
+  protected Scorer scorer;
+
+  /**
+   *  Dynamic pruning.  If wand is set, docIteratorHasMatchWand skips
+   *  documents that can't score at least minCompetitiveScore.
+   */
+  protected WandIterator wand = null;
+  protected double minCompetitiveScore = Double.NEGATIVE_INFINITY;
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
+   *  Each operator calls this.scorer from its own getScore and
+   *  getDefaultScore.  A run uses one retrieval model, so each of
+   *  those call sites sees one Scorer class, and the JIT can inline
+   *  the scorer into it.
    *  @param r The retrieval model that determines how scores are calculated.
    *  @return The document score.
    *  @throws IOException Error accessing the Lucene index
    */
-  public abstract double getScore (RetrievalModel r)
-    throws IOException;
-  
+  public abstract double getScore (RetrievalModel r) throws IOException;
+
+  /**
+   *  Get the scorer for a retrieval model, usually from the model
+   *  (r.getScorer (this)).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The operator doesn't support the model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected abstract Scorer getScorer (RetrievalModel r) throws IOException;
+
+  /**
+   *  Get a score for a document that the query operator doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal id of the document.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
   public abstract double getDefaultScore (RetrievalModel r, long docid)
 	throws IOException;
 
+  /**
+   *  Find the block of documents that starts at the first document
+   *  at or after the specified document that the query operator may
+   *  match, without moving the docIterator.  getBlockMaxScore then
+   *  bounds the scores of the documents in the block.  Operators that
+   *  don't have block bounds treat all documents as one block.
+   *  @param docid An internal document id.
+   *  @return The last docid that the block covers, or Integer.MAX_VALUE.
+   */
+  public int docIteratorAdvanceShallow (int docid) {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get an upper bound on the score of the documents in the block
+   *  that docIteratorAdvanceShallow found.
+   *  @return The maximum possible score in the block.
+   */
+  public double getBlockMaxScore () {
+    return this.getMaxScore ();
+  }
+
+  /**
+   *  Get an upper bound on the default score (see getDefaultScore)
+   *  of any document.  It is valid after initialize.  Operators that
+   *  can't bound their default scores return infinity.
+   *  @return The maximum possible default score.
+   */
+  public double getMaxDefaultScore () {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the score of any document.  It is valid
+   *  after initialize.  Operators that can't bound their scores
+   *  return infinity.
+   *  @return The maximum possible score.
+   */
+  public double getMaxScore () {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Tell the query operator that documents scoring below the
+   *  specified score will be discarded, so it may skip them.  Most
+   *  operators ignore this.
+   *  @param score The lowest score that can still enter the results.
+   */
+  public void setMinCompetitiveScore (double score) {
+    this.minCompetitiveScore = score;
+  }
+
+  /**
+   *  An instantiation of docIteratorHasMatch that uses the WAND
+   *  iterator to skip documents that can't score at least
+   *  minCompetitiveScore.  Otherwise it is like docIteratorHasMatchMin.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  protected boolean docIteratorHasMatchWand (RetrievalModel r) {
+
+    if (this.docIteratorHasMatchCache ())
+      return true;
+
+    return (this.wand.next (r, this.minCompetitiveScore) &&
+            this.docIteratorHasMatchMin (r));
+  }
+
+  /**
+   *  Get the query arguments as QrySop operators.
+   *  @return The query arguments.
+   */
+  protected QrySop[] getSopArgs () {
+    QrySop[] sopArgs = new QrySop [this.args.size ()];
+
+    for (int i = 0; i < sopArgs.length; i++)
+      sopArgs[i] = (QrySop) this.args.get (i);
+
+    return sopArgs;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -38,5 +182,9 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    this.scorer = this.getScorer (r);
+    this.wand = null;
+    this.minCompetitiveScore = Double.NEGATIVE_INFINITY;
   }
 }
@@ -3,137 +3,84 @@
  */
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  *  The AND operator for all retrieval models.
  */
 public class QrySopAnd extends QrySop {
 
+  /**
+   *  Indri matches documents that contain any argument; the Boolean
+   *  models match documents that contain all of them.  Set by getScorer.
+   */
+  private boolean matchAny = false;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
-      if (r instanceof RetrievalModelIndri)
+      if (this.wand != null)
+          return this.docIteratorHasMatchWand (r);
+      else if (this.matchAny)
           return this.docIteratorHasMatchMin (r);
       else
           return this.docIteratorHasMatchAll (r);  }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
-   *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  Initialize the query operator and its arguments.  Indri may use
+   *  WAND or Block-Max WAND to skip documents.
+   *  @param r A retrieval model that guides initialization
+   *  @throws IOException Error accessing the Lucene index.
    */
-  public double getScore (RetrievalModel r) throws IOException {
+  public void initialize (RetrievalModel r) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean (r);
-    }
-    else if(r instanceof RetrievalModelRankedBoolean) {
-    	return this.getScoreRankedBoolean(r);
-    }
-    else if (r instanceof RetrievalModelIndri) {
-        return this.getScoreIndri(r);
-    } 
+    super.initialize (r);
 
-    //  STUDENTS::
-    //  Add support for other retrieval models here.
+    if (r instanceof RetrievalModelIndri) {
+      String pruning = ((RetrievalModelIndri) r).pruning;
 
-    else {
-      throw new IllegalArgumentException
-        (r.getClass().getName() + " doesn't support the AND operator.");
+      if (pruning.equals ("wand") || pruning.equals ("bmw")) {
+        double[] exponents = new double [this.args.size ()];
+        Arrays.fill (exponents, 1.0 / this.args.size ());
+        this.wand = WandIterator.forIndri (this.getSopArgs (), exponents,
+                                           pruning.equals ("bmw"));
+      }
     }
   }
-  
+
   /**
-   *  getScore for the UnrankedBoolean retrieval model.
+   *  Get a score for a document that the query operator doesn't match.
    *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
+   *  @param docid The internal id of the document.
+   *  @return The default score.
    *  @throws IOException Error accessing the Lucene index
    */
-  private double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      return 1.0;
-    }
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return this.scorer.getDefaultScore (r, docid);
   }
+
   /**
-   *  getScore for the RankedBoolean retrieval model: Max score among all the query terms.
+   *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
    *  @return The document score.
    *  @throws IOException Error accessing the Lucene index
    */
-  private double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-    	double min = Double.MAX_VALUE;
-    	for (Qry q:this.args) {
-    		if(q.docIteratorHasMatch(r)) {
-    			if(q.docIteratorGetMatch() == this.docIteratorGetMatch()) {
-    				double curr_score = ((QrySop)q).getScore(r);
-    				if(curr_score < min) {
-    					min = curr_score;
-    				}
-    			}
-    		}
-    	}
-    	return min;
-    }
-  }
-  
-  
-  private double getScoreIndri(RetrievalModel r) throws IOException {
-
-      int docid = this.docIteratorGetMatch();
-      double score = 1.0;
-
-      for (Qry q : this.args) {
-    	  
-          if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid) {
-    	  //if(((QrySop) q).docIteratorMatchCache != this.docIteratorMatchCache) {
-        	  
-              //score *= ((QrySop) q).getScore(r);
-        	  score *= Math.pow(((QrySop)q).getScore(r), 1.0/this.args.size());
-        	  //score *= Math.pow(((QrySop) q).getDefaultScore(r, docid), 1.0/this.args.size());
-
-          }
-          
-          else {
-        	  
-              //score *= ((QrySop) q).getDefaultScore(r, docid);
-        	  score *= Math.pow(((QrySop) q).getDefaultScore(r, docid), 1.0/this.args.size());
-        	  //score *= Math.pow(((QrySop)q).getScore(r), 1.0/this.args.size());
-
-
-          }
-          
-
-      }
-      
-      //if(Idx.getExternalDocid(docid).equals("GX233-75-15885072"))
-      //System.out.println(score);
-      //System.out.println("score:"+Math.pow(score, 1.0 / this.args.size()));
-      //return Math.pow(score, 1.0 / this.args.size());
-      return score;
-
+  public double getScore (RetrievalModel r) throws IOException {
+    return this.scorer.getScore (r);
   }
 
-
-  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-
-      double score = 1.0;
-
-      for ( Qry q : this.args ) {
-          //score *= ((QrySop) q).getDefaultScore(r, docid);
-    	  score *= Math.pow(((QrySop) q).getDefaultScore(r, docid), 1.0/this.args.size());
-      }
-
-      //return Math.pow(score, 1.0 / this.args.size());
-      return score;
+  /**
+   *  Get the scorer for a retrieval model.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scorer.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected Scorer getScorer (RetrievalModel r) throws IOException {
+    this.matchAny = r.matchesAnyArgument ();
+    return r.getScorer (this);
   }
 
 }
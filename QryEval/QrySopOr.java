@@ -19,70 +19,34 @@ public class QrySopOr extends QrySop {
   }
 
   /**
-   *  Get a score for the document that docIteratorHasMatch matched.
+   *  Get a score for a document that the query operator doesn't match.
    *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
+   *  @param docid The internal id of the document.
+   *  @return The default score.
    *  @throws IOException Error accessing the Lucene index
    */
-  public double getScore (RetrievalModel r) throws IOException {
-
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean (r);
-    }
-    else if(r instanceof RetrievalModelRankedBoolean) {
-    	return this.getScoreRankedBoolean(r);
-    }
-
-    //  STUDENTS::
-    //  Add support for other retrieval models here.
-
-    else {
-      throw new IllegalArgumentException
-        (r.getClass().getName() + " doesn't support the OR operator.");
-    }
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return this.scorer.getDefaultScore (r, docid);
   }
-  
+
   /**
-   *  getScore for the UnrankedBoolean retrieval model.
+   *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
    *  @return The document score.
    *  @throws IOException Error accessing the Lucene index
    */
-  private double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      return 1.0;
-    }
+  public double getScore (RetrievalModel r) throws IOException {
+    return this.scorer.getScore (r);
   }
+
   /**
-   *  getScore for the RankedBoolean retrieval model: Max score among all the query terms.
+   *  Get the scorer for a retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  @return The scorer.
+   *  @throws IOException Error accessing the Lucene index.
    */
-  private double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-    	double max = 0.0;
-    	for (Qry q:this.args) {
-    		if(q.docIteratorHasMatch(r)) {
-    			if(q.docIteratorGetMatch() == this.docIteratorGetMatch()) {
-    				double cur_score = ((QrySop)q).getScore(r);
-    				if(cur_score > max) {
-    					max = cur_score;
-    				}
-    			}
-    		}
-    	}
-    	return max;
-    }
-  }
-  
-  
-  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-	  return 0.0;
+  protected Scorer getScorer (RetrievalModel r) throws IOException {
+    return r.getScorer (this);
   }
 
 }
@@ -3,17 +3,64 @@
  */
 
 import java.io.IOException;
+import java.util.function.DoubleBinaryOperator;
 
 /**
  *  The SCORE operator for all retrieval models.
  */
 public class QrySopScore extends QrySop {
 
+  //  Score bounds for dynamic pruning.  The scorer sets them, if its
+  //  retrieval model can bound its scores (see setScoreBounds).
+
+  private DoubleBinaryOperator scoreOfTfLength = null;
+  private double maxScore = Double.POSITIVE_INFINITY;
+  private double maxDefaultScore = Double.POSITIVE_INFINITY;
+
+  /**
+   *  Find the block of documents that contains the first document at
+   *  or after the specified document that the argument matches.
+   *  @param docid An internal document id.
+   *  @return The last docid that the block covers, or Integer.MAX_VALUE.
+   */
+  public int docIteratorAdvanceShallow (int docid) {
+    if (this.scoreOfTfLength == null)
+      return Integer.MAX_VALUE;
+
+    return ((QryIop) this.args.get (0)).docIteratorAdvanceShallow (docid);
+  }
+
+  /**
+   *  Get an upper bound on the score of the documents in the block
+   *  that docIteratorAdvanceShallow found.
+   *  @return The maximum possible score in the block.
+   */
+  public double getBlockMaxScore () {
+    if (this.scoreOfTfLength == null)
+      return this.maxScore;
+
+    double max = ((QryIop) this.args.get (0)).getBlockMaxScore (this.scoreOfTfLength);
+
+    return Math.max (max, 0.0);
+  }
+
   /**
-   *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  Get an upper bound on the default score of any document.  The
+   *  default score is largest for an empty field.
+   *  @return The maximum possible default score.
    */
-  
+  public double getMaxDefaultScore () {
+    return this.maxDefaultScore;
+  }
+
+  /**
+   *  Get an upper bound on the score of any document.
+   *  @return The maximum possible score.
+   */
+  public double getMaxScore () {
+    return this.maxScore;
+  }
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -30,270 +77,30 @@ public class QrySopScore extends QrySop {
    *  @throws IOException Error accessing the Lucene index
    */
   public double getScore (RetrievalModel r) throws IOException {
-
-    if (r instanceof RetrievalModelUnrankedBoolean) {
-      return this.getScoreUnrankedBoolean (r);
-    } 
-
-    //  STUDENTS::
-    //  Add support for other retrieval models here.
-    else if(r instanceof RetrievalModelRankedBoolean) {
-    	return this.getScoreRankedBoolean(r);
-    }
-    else if (r instanceof RetrievalModelBM25) {
-        return this.getScoreBM25(r);
-    } else if (r instanceof RetrievalModelIndri) {
-        return this.getScoreIndri(r);
-    }
-    else {
-      throw new IllegalArgumentException
-        (r.getClass().getName() + " doesn't support the SCORE operator.");
-    }
+    return this.scorer.getScore (r);
   }
-  
+
   /**
-   *  getScore for the Unranked retrieval model.
+   *  Get the scorer for a retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
-   *  @return The document score.
-   *  @throws IOException Error accessing the Lucene index
+   *  @return The scorer.
+   *  @throws IOException Error accessing the Lucene index.
    */
-  public double getScoreUnrankedBoolean (RetrievalModel r) throws IOException {
-    if (! this.docIteratorHasMatchCache()) {
-      return 0.0;
-    } else {
-      return 1.0;
-    }
-  }
-  
-  public double getScoreRankedBoolean (RetrievalModel r) throws IOException {
-	  if(!this.docIteratorHasMatchCache()) {
-		  return 0.0;
-	  }else {
-		  return ((QryIop)this.args.get(0)).docIteratorGetMatchPosting().tf;
-	  }
+  protected Scorer getScorer (RetrievalModel r) throws IOException {
+    return r.getScorer (this);
   }
-  
-  public double getScoreBM25(RetrievalModel r) throws IOException {
-		Qry q = this.args.get(0);
-		if (q.docIteratorHasMatch(r)) {
-			String field = ((QryIop) q).getField();
-
-			long doc_num = Idx.getNumDocs();
-			double doc_len = Idx.getFieldLength(field, q.docIteratorGetMatch());
-			double avg_len = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
-
-			
-			double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-			double df = ((QryIop) q).getDf();
-
-			double k_1 = ((RetrievalModelBM25) r).k_1;
-			double b = ((RetrievalModelBM25) r).b;
-			double k_3 = ((RetrievalModelBM25) r).k_3;
-			
-			double rsj_weight = Math.max(0, Math.log((doc_num - df + 0.5) / (df + 0.5)));
-
-			double tf_weight = tf / (tf + k_1 * (1 - b + b * doc_len / avg_len));
-
-			double user_weight = (k_3 + 1) * 1 / (k_3 + 1);
-
-			return rsj_weight * tf_weight * user_weight;
-		}
-		return 0.0;	  
-
-  }
-  public double getScoreBM25(int doc_id, String query, String field, double k_1, double b, double k_3) throws IOException {
-	  		double score = 0.0;
-	  		
-	  		String[] qry_terms = QryParser.tokenizeString(query);
-			double doc_len = (double)Idx.getFieldLength(field, doc_id);
-			double avg_len = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
-			TermVector tv = new TermVector(doc_id, field);
-			double N = (double)Idx.getNumDocs();
-			
-			if (tv.positionsLength() == 0)
-				return Double.MIN_VALUE;
-
-			for(String term : qry_terms) {
-			      int idx = tv.indexOfStem(term);
-			      if (idx == -1)
-			        continue;
-			      
-			      double tf = (double)tv.stemFreq(idx);
-			      double df = (double)tv.stemDf(idx); 
-			      
-			      double rsj_weight = Math.max(0, Math.log((N - df + 0.5) / (df + 0.5)));
-			      double tf_weight = tf / (tf + k_1 * (1 - b + b * doc_len / avg_len));
-			      double user_weight = (k_3 + 1) * 1 / (k_3 + 1);
-			      
-			      score += rsj_weight * tf_weight * user_weight;
-			
-			}
-			
-			return score;
-
-  }
-  public double getScoreIndri(RetrievalModel r) throws IOException {
-	  	//System.out.println("Get score indri");
-		Qry q = this.args.get(0);
-		
-		//if(q.docIteratorHasMatchCache()) {
-		//if (q.docIteratorHasMatch(r)) {
-			//System.out.println("matched doc\n");
-			String field = ((QryIop) q).getField();
-
-			double lambda = ((RetrievalModelIndri) r).lambda;
-			double mu = ((RetrievalModelIndri) r).mu;
-
-			double ctf = ((QryIop) q).getCtf();	
-			//double tf = ((QryIop) q).docIteratorGetMatchPosting().tf;
-			
-			double tf = ((QryIop)q).getInvertedList().postings.get(((QryIop)q).docIteratorIndex).tf;
-			//double tf2 = ((QryIop)q).getInvertedList().postings.get(q.docIteratorGetMatch()).tf;
-			
-			double doc_len = Idx.getFieldLength(field, q.docIteratorGetMatch());
-			//double doc_len = Idx.getFieldLength(field, ((QryIop)q).getInvertedList().getDocid(((QryIop)q).docIteratorIndex));
-			
-			double collection_len = Idx.getSumOfFieldLengths(field);
-			
-			double mle = ctf / collection_len;
-			//double score = (1 - lambda) * (tf + mu * ctf / collection_len) / (doc_len + mu) + lambda * ctf /collection_len;
-			double score = (1.0 - lambda) * (tf + mu * mle) / (doc_len + mu) + lambda * mle;
-			
-			return score;
-		//}
-		//return 0.0;
-		 
-		//return ((QryIop)q).getScoreIndri(r);
-  }
-  
-  public double getScoreIndri(int doc_id, String query, String field, double lambda, double mu) throws IOException {
-		
-	  		double score = 1.0;
-	  		String[] qry_terms = QryParser.tokenizeString(query);
-	  		
-			double doc_len = Idx.getFieldLength(field, doc_id);
-			double collection_len = Idx.getSumOfFieldLengths(field);
-
-			TermVector tv = new TermVector(doc_id, field);
-			if (tv.positionsLength() == 0)
-				return Double.MIN_VALUE;
-			boolean flag = false;
-			for(String term : qry_terms) {
-				int idx = tv.indexOfStem(term);
-			    double tf = 0.0;
-			    if (idx != -1) {
-			        tf = (double)tv.stemFreq(idx);
-			        flag = true;
-			      }
-				double ctf = (double)Idx.getTotalTermFreq(field, term);
-				
-				double mle = ctf / collection_len;
-				
-				double temp_score = (1 - lambda) * (tf + mu * mle) / (doc_len + mu) + lambda * mle;
-				
-				score *= (Math.pow(temp_score, 1.0 / (double)qry_terms.length));
-
-			}
-			if(flag)
-				return score;
-			else
-				return 0.0;
 
+  /**
+   *  Get a score for a document that the query operator doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal id of the document.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+    return this.scorer.getDefaultScore (r, docid);
   }
 
-  
-  public double getDefaultScore(RetrievalModel r, long doc_id) throws IOException {
-	  	//System.out.println("Get default score indri");
-
-	    Qry q = this.args.get(0);
-	    String field = ((QryIop) q).getField();
-	    
-	    double lambda = ((RetrievalModelIndri) r).lambda;
-	    double mu = ((RetrievalModelIndri) r).mu;
-
-	    double ctf = ((QryIop) q).getCtf();
-	    
-	    // extra smoothing
-	    if (Math.abs(ctf - 0) < 1e-9)
-             ctf = 0.5;
-	    
-	    double doc_len = Idx.getFieldLength(field, (int)doc_id);
-	    double collection_len = Idx.getSumOfFieldLengths(field);
-	    
-	    double mle = ctf / collection_len;
-	    //double score = (1 - lambda) * (mu * ctf / collection_len) / (doc_len + mu) + lambda * ctf / collection_len;
-	    double score = (1.0 - lambda) * (mu * mle) / (doc_len + mu) + lambda * mle;
-	    
-	    return score;
-	  }
-  
-	public double getOverlapScore(int doc_id, String query, String field) throws IOException {
-		
-		String[] qry_terms = QryParser.tokenizeString(query);
-	    double score = 0.0;
-	    TermVector tv = new TermVector(doc_id, field);
-	    for (String term : qry_terms) {
-	      if (tv.positionsLength() == 0)
-	        return Double.MIN_VALUE;
-	      int idx = tv.indexOfStem(term);
-	      if (idx == -1)
-	        continue;
-	      double tf = tv.stemFreq(idx);
-	      if (tf != 0)
-	        score += 1.0;
-	    }
-	    return score / (double)qry_terms.length;
-	}
-	
-	public double getTfIdfScore(int doc_id, String query, String field) throws IOException{
-  		double score = 0.0;
-  		
-  		String[] qry_terms = QryParser.tokenizeString(query);
-		TermVector tv = new TermVector(doc_id, field);
-	    double N = (double)Idx.getNumDocs();
-
-		
-		if (tv.positionsLength() == 0)
-			return Double.MIN_VALUE;
-
-		for(String term : qry_terms) {
-		      int idx = tv.indexOfStem(term);
-		      if (idx == -1)
-		        continue;
-		      double tf = (double)tv.stemFreq(idx);
-		      double df = (double)tv.stemDf(idx); 
-		      double idf = Math.max(0.0, Math.log((N - df + 0.5) / (df + 0.5)));
-		      
-		      score += tf * idf;
-		}
-		return score;
-
-	}
-	
-	public double getAvgtfScore(int doc_id, String query, String field) throws IOException{
-  		double score = 0.0;
-  		
-  		String[] qry_terms = QryParser.tokenizeString(query);
-		TermVector tv = new TermVector(doc_id, field);
-
-		if (tv.positionsLength() == 0)
-			return Double.MIN_VALUE;
-
-		for(String term : qry_terms) {
-		      int idx = tv.indexOfStem(term);
-		      if (idx == -1)
-		        continue;
-		      double tf = (double)tv.stemFreq(idx);
-		      
-		      score += tf;
-		}
-		if(qry_terms.length != 0)
-			return score / (double)qry_terms.length;
-		else
-			return 0.0;
-
-	}
-	
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -304,8 +111,47 @@ public class QrySopScore extends QrySop {
    */
   public void initialize (RetrievalModel r) throws IOException {
 
-    Qry q = this.args.get (0);
-    q.initialize (r);
+    if (((r instanceof RetrievalModelBM25) &&
+         ((RetrievalModelBM25) r).pruning.equals ("bmw")) ||
+        ((r instanceof RetrievalModelIndri) &&
+         ((RetrievalModelIndri) r).pruning.equals ("bmw"))) {
+      ((QryIop) this.args.get (0)).impactsRequired = true;
+    }
+
+    this.scoreOfTfLength = null;
+    this.maxScore = Double.POSITIVE_INFINITY;
+    this.maxDefaultScore = Double.POSITIVE_INFINITY;
+
+    super.initialize (r);
+  }
+
+  /**
+   *  Set the score bounds that dynamic pruning uses.  Scorers whose
+   *  scores are bounded call this when they are created.  The bounds
+   *  are valid for scores that grow with tf and shrink with the field
+   *  length.
+   *  @param scoreOfTfLength The score of a tf and a field length.
+   *  @param maxDefaultScore The largest default score, or infinity
+   *     if default scores aren't bounded.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void setScoreBounds (DoubleBinaryOperator scoreOfTfLength,
+                              double maxDefaultScore)
+    throws IOException {
+
+    QryIop q = (QryIop) this.args.get (0);
+
+    this.scoreOfTfLength = scoreOfTfLength;
+    this.maxDefaultScore = maxDefaultScore;
+
+    //  A document is at least as long as its tf.  Every matching
+    //  document has tf >= 1, so no tf exceeds ctf - df + 1.
+
+    double maxTf = q.getCtf () - q.getDf () + 1;
+    double minLen = Math.max (maxTf, Idx.getMinFieldLength (q.getField ()));
+
+    this.maxScore = (q.getDf () > 0) ?
+      this.scoreOfTfLength.applyAsDouble (maxTf, minLen) : 0.0;
   }
 
 }
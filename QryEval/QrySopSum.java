@@ -1,41 +1,200 @@
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 public class QrySopSum  extends QrySop{
-	
-	
+
+    /**
+     *  Scores are compared to the threshold with a little slack, so
+     *  that rounding in the upper bounds can't prune a document that
+     *  would be kept.
+     */
+    private static final double BOUND_SLACK = 1e-9;
+
+    /**
+     *  MaxScore state.  The arguments are ordered by their score upper
+     *  bounds, lowest first.  The first numNonEssential of them can't
+     *  lift a document into the top k by themselves, so they are only
+     *  checked for documents that one of the other (essential)
+     *  arguments matches.  boundSums[i] is the sum of the first i
+     *  upper bounds.
+     */
+    private boolean maxScore = false;
+    private QrySop[] byBound;
+    private double[] boundSums;
+    private int numNonEssential = 0;
+
     public boolean docIteratorHasMatch(RetrievalModel r) {
+        if (this.maxScore && (this.numNonEssential > 0))
+            return this.docIteratorHasMatchMaxScore(r);
+
+        if (this.wand != null)
+            return this.docIteratorHasMatchWand(r);
+
         return this.docIteratorHasMatchMin(r);
     }
 
-    public double getScore(RetrievalModel r) throws IOException {
-    	
-        if (r instanceof RetrievalModelBM25) {
-            return this.getScoreBM25 (r);
-        } 
-        else {
-            throw new IllegalArgumentException
-              (r.getClass().getName() + " doesn't support the SUM operator.");
+    /**
+     *  An instantiation of docIteratorHasMatch that finds the next
+     *  document that matches an essential argument and whose score
+     *  may reach the threshold.  Documents that can't are skipped
+     *  without checking the remaining arguments.
+     *  @param r The retrieval model that determines what is a match
+     *  @return True if the query matches, otherwise false.
+     */
+    private boolean docIteratorHasMatchMaxScore(RetrievalModel r) {
+
+        if (this.docIteratorHasMatchCache())
+            return true;
+
+        double threshold = this.minCompetitiveScore -
+            BOUND_SLACK * Math.abs(this.minCompetitiveScore);
+
+        try {
+            while (true) {
+
+                //  The candidate is the next document of an essential argument.
+
+                int docid = Qry.INVALID_DOCID;
+
+                for (int i = this.numNonEssential; i < this.byBound.length; i++) {
+                    QrySop q = this.byBound[i];
+
+                    if (q.docIteratorHasMatch(r) &&
+                        ((docid == Qry.INVALID_DOCID) || (q.docIteratorGetMatch() < docid)))
+                        docid = q.docIteratorGetMatch();
+                }
+
+                if (docid == Qry.INVALID_DOCID)
+                    return false;
+
+                //  Score the essential arguments, then check the others
+                //  from the highest bound down, as long as the document
+                //  can still reach the threshold.
+
+                double score = 0.0;
+
+                for (int i = this.numNonEssential; i < this.byBound.length; i++) {
+                    QrySop q = this.byBound[i];
+
+                    if (q.docIteratorHasMatch(r) && (q.docIteratorGetMatch() == docid))
+                        score += q.getScore(r);
+                }
+
+                boolean competitive = (score + this.boundSums[this.numNonEssential] >= threshold);
+
+                for (int i = this.numNonEssential - 1; competitive && (i >= 0); i--) {
+                    QrySop q = this.byBound[i];
+
+                    q.docIteratorAdvanceTo(docid);
+
+                    if (q.docIteratorHasMatch(r) && (q.docIteratorGetMatch() == docid))
+                        score += q.getScore(r);
+
+                    competitive = (score + this.boundSums[i] >= threshold);
+                }
+
+                if (competitive)
+                    return this.docIteratorHasMatchMin(r);
+
+                for (int i = this.numNonEssential; i < this.byBound.length; i++)
+                    this.byBound[i].docIteratorAdvancePast(docid);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     *  Use MaxScore, WAND or Block-Max WAND if the retrieval model asks
+     *  for it and every argument has a score upper bound.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        this.maxScore = false;
+        this.numNonEssential = 0;
+
+        if (! (r instanceof RetrievalModelBM25))
+            return;
+
+        String pruning = ((RetrievalModelBM25) r).pruning;
+
+        if (pruning.equals("wand") || pruning.equals("bmw")) {
+            this.wand = WandIterator.forSum(this.getSopArgs(), pruning.equals("bmw"));
+            return;
         }
 
+        if (! pruning.equals("maxscore"))
+            return;
+
+        this.byBound = new QrySop[this.args.size()];
+
+        for (int i = 0; i < this.byBound.length; i++) {
+            this.byBound[i] = (QrySop) this.args.get(i);
+
+            if (Double.isInfinite(this.byBound[i].getMaxScore()))
+                return;
+        }
+
+        Arrays.sort(this.byBound,
+                    (a, b) -> Double.compare(a.getMaxScore(), b.getMaxScore()));
+
+        this.boundSums = new double[this.byBound.length + 1];
+
+        for (int i = 0; i < this.byBound.length; i++)
+            this.boundSums[i + 1] = this.boundSums[i] + this.byBound[i].getMaxScore();
+
+        this.maxScore = true;
     }
 
+    /**
+     *  Get an upper bound on the score of any document, which is the
+     *  sum of the arguments' bounds.
+     *  @return The maximum possible score.
+     */
+    public double getMaxScore() {
+        double max = 0.0;
+
+        for (Qry q : this.args)
+            max += ((QrySop) q).getMaxScore();
+
+        return max;
+    }
 
-    public double getScoreBM25(RetrievalModel r) throws IOException {
-        if (!this.docIteratorHasMatch(r) ) 
-        	return 0.0;
-        int docid = this.docIteratorGetMatch();
-        double score = 0.0;
-        for ( Qry q : args ) {
-            if ( q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid )
-                score += ((QrySop) q).getScore(r);
+    /**
+     *  Raise the threshold, and move arguments whose bounds add up to
+     *  less than it to the non-essential set.
+     *  @param score The lowest score that can still enter the results.
+     */
+    public void setMinCompetitiveScore(double score) {
+
+        if (! this.maxScore || (score <= this.minCompetitiveScore)) {
+            super.setMinCompetitiveScore(score);
+            return;
         }
-        return score;
+
+        this.minCompetitiveScore = score;
+
+        double threshold = score - BOUND_SLACK * Math.abs(score);
+
+        while ((this.numNonEssential < this.byBound.length) &&
+               (this.boundSums[this.numNonEssential + 1] < threshold))
+            this.numNonEssential++;
     }
-    
 
     public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-    	
-        return 0.0;
+        return this.scorer.getDefaultScore(r, docid);
+    }
+
+    public double getScore(RetrievalModel r) throws IOException {
+        return this.scorer.getScore(r);
+    }
+
+    protected Scorer getScorer(RetrievalModel r) throws IOException {
+        return r.getScorer(this);
     }
 
 	public static void main(String[] args) {
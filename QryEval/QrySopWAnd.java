@@ -2,61 +2,56 @@ import java.io.IOException;
 
 public class QrySopWAnd extends QryWSop {
 
+	/**
+	 *  Indri matches documents that contain any argument.  Set by getScorer.
+	 */
+	private boolean matchAny = false;
+
 	public boolean docIteratorHasMatch (RetrievalModel r) {
-        if (r instanceof RetrievalModelIndri)
+        if (this.wand != null)
+            return this.docIteratorHasMatchWand (r);
+        else if (this.matchAny)
             return this.docIteratorHasMatchMin (r);
         else
             return this.docIteratorHasMatchAll (r);		  
     }
 	
-	public double getScore(RetrievalModel r) throws IOException{
-		if (r instanceof RetrievalModelIndri) {
-	        return this.getScoreIndri (r);
-	      }
-	      //  STUDENTS::
-	      //  Add support for other retrieval models here.
-		else {
-		  throw new IllegalArgumentException
-	          (r.getClass().getName() + " doesn't support the WAND operator.");
-	      }
-		
-	}
-	
-	public double getScoreIndri(RetrievalModel r) throws IOException{
-		
-		double score = 1.0;
-		int docid = this.docIteratorGetMatch();
-		
-        for (int i = 0; i < this.args.size(); i++) {
-        	
-            QrySop q = (QrySop)this.args.get(i);
-
-            if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid ) {
-                score *= Math.pow(q.getScore(r), weights.get(i) / this.sumWeight());
-            } 
-            else {
-                score *= Math.pow(q.getDefaultScore(r, docid), weights.get(i) / this.sumWeight());
-            }
+	/**
+	 *  Initialize the query operator and its arguments.  Indri may use
+	 *  WAND or Block-Max WAND to skip documents.
+	 *  @param r A retrieval model that guides initialization
+	 *  @throws IOException Error accessing the Lucene index.
+	 */
+	public void initialize(RetrievalModel r) throws IOException {
 
-        }
+		super.initialize(r);
 
-        return score;
-		
+		if (r instanceof RetrievalModelIndri) {
+			String pruning = ((RetrievalModelIndri) r).pruning;
+
+			if (pruning.equals("wand") || pruning.equals("bmw")) {
+				double[] exponents = new double[this.args.size()];
+				for (int i = 0; i < exponents.length; i++)
+					exponents[i] = weights.get(i) / this.sumWeight();
+				this.wand = WandIterator.forIndri(this.getSopArgs(), exponents,
+				                                  pruning.equals("bmw"));
+			}
+		}
 	}
-	
-    public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-        double score = 1.0;
+	public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+		return this.scorer.getDefaultScore(r, docid);
+	}
 
-        for ( int i = 0; i < this.args.size(); i++ ) {
-            QrySop q = (QrySop) this.args.get(i);
-            score *= Math.pow(q.getDefaultScore(r, docid), weights.get(i) / this.sumWeight());
-        }
+	public double getScore(RetrievalModel r) throws IOException {
+		return this.scorer.getScore(r);
+	}
 
-        return score;
+	protected Scorer getScorer(RetrievalModel r) throws IOException {
+		this.matchAny = r.matchesAnyArgument();
+		return r.getScorer(this);
+	}
 
-    }
-	
 	public static void main(String[] args) {
 		// TODO Auto-generated method stub
 
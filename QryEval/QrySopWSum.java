@@ -2,59 +2,29 @@ import java.io.IOException;
 
 public class QrySopWSum extends QryWSop {
 
+	/**
+	 *  Indri matches documents that contain any argument.  Set by getScorer.
+	 */
+	private boolean matchAny = false;
+
 	public boolean docIteratorHasMatch (RetrievalModel r) {
-        if (r instanceof RetrievalModelIndri)
+        if (this.matchAny)
             return this.docIteratorHasMatchMin (r);
         else
             return this.docIteratorHasMatchAll (r);	  
     }
 
-	public double getScore(RetrievalModel r) throws IOException{
-		if (r instanceof RetrievalModelIndri) {
-	        return this.getScoreIndri (r);
-	      }
-	      //  STUDENTS::
-	      //  Add support for other retrieval models here.
-		else {
-		  throw new IllegalArgumentException
-	          (r.getClass().getName() + " doesn't support the WSUM operator.");
-	      }
-		
+	public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+		return this.scorer.getDefaultScore(r, docid);
 	}
 
-	public double getScoreIndri(RetrievalModel r) throws IOException{
-	
-		double score = 0.0;
-		int docid = this.docIteratorGetMatch();
-		
-	    for (int i = 0; i < this.args.size(); i++) {
-	    	
-	        QrySop q = (QrySop)this.args.get(i);
-	
-	        if (q.docIteratorHasMatch(r) && q.docIteratorGetMatch() == docid ) {
-	        	score += q.getScore(r) * weights.get(i) / this.sumWeight();
-	        } 
-	        else {
-	        	score += q.getDefaultScore(r, docid) * weights.get(i) / this.sumWeight();
-	        }
-	
-	    }
-	
-	    return score;
-		
+	public double getScore(RetrievalModel r) throws IOException {
+		return this.scorer.getScore(r);
 	}
 
-	public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
-
-	    double score = 0.0;
-	
-	    for ( int i = 0; i < this.args.size(); i++ ) {
-	        QrySop q = (QrySop) this.args.get(i);
-	        score += q.getDefaultScore(r, docid) * weights.get(i) / this.sumWeight();
-	    }
-	
-	    return score;
-	
+	protected Scorer getScorer(RetrievalModel r) throws IOException {
+		this.matchAny = r.matchesAnyArgument();
+		return r.getScorer(this);
 	}
 
 	public static void main(String[] args) {
@@ -18,6 +18,25 @@ public abstract class QryWSop extends QrySop{
         	sum += w;
         return sum;
     }
+
+    /**
+     *  Get a string version of this query operator, with the weight
+     *  of each argument, e.g., #wand( 0.3 a.body 0.7 b.body ).
+     *  @return The string version of this query operator.
+     */
+    @Override public String toString() {
+        StringBuilder result = new StringBuilder(this.getDisplayName()).append("( ");
+        int n = Math.max(this.args.size(), this.weights.size());
+
+        for (int i = 0; i < n; i++) {
+            if (i < this.weights.size())
+                result.append(this.weights.get(i)).append(' ');
+            if (i < this.args.size())
+                result.append(this.args.get(i)).append(' ');
+        }
+
+        return result.append(')').toString();
+    }
     
     
 	public static void main(String[] args) {
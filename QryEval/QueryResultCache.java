@@ -0,0 +1,387 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ *  A cache of query results, so that a query that is evaluated again
+ *  (e.g., in a parameter sweep, or the initial ranking of query
+ *  expansion) returns its results without evaluation.  Results are
+ *  keyed by the current index, the retrieval model's scoring
+ *  parameters, and the optimized query tree.  A result for the top k
+ *  documents also answers requests for fewer documents.
+ *  <p>
+ *  Recently used results are kept in memory, up to a number of
+ *  entries.  If a directory is configured, results are also stored
+ *  there, one file per result, so that later runs can use them.  The
+ *  directory has a budget in bytes.  A file's modification time is
+ *  updated when it is read, and when the directory is over budget,
+ *  the least recently used files are deleted, whichever process
+ *  wrote them.
+ *  </p><p>
+ *  The cache is shared by all queries in the process, and is safe to
+ *  use from several threads at once.  It is disabled until it is
+ *  configured.
+ *  </p>
+ */
+public class QueryResultCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x51455243;	// "QERC"
+
+  /**
+   *  When the directory is over budget, files are deleted until it
+   *  is this percentage of the budget, so that it isn't trimmed after
+   *  every write.
+   */
+  private static final int TRIM_PERCENT = 90;
+
+  /**
+   *  A cached result:  The top documents, and the number of documents
+   *  that were requested when it was created.
+   */
+  private static class Entry {
+    final int length;
+    final int[] docids;
+    final double[] scores;
+    final String[] externalIds;
+
+    Entry (int length, int[] docids, double[] scores, String[] externalIds) {
+      this.length = length;
+      this.docids = docids;
+      this.scores = scores;
+      this.externalIds = externalIds;
+    }
+  }
+
+  /**
+   *  A result file in the directory, for trimming.
+   */
+  private static class StoredFile {
+    final Path path;
+    final long size;
+    final long lastUsed;
+
+    StoredFile (Path path, long size, long lastUsed) {
+      this.path = path;
+      this.size = size;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  private static volatile int maxEntries = 0;
+  private static volatile Path directory = null;
+  private static long maxDirectoryBytes = 0;
+  private static long directoryBytes = 0;	// Estimate, since last trim
+  private static LinkedHashMap<String, Entry> entries = newEntries ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Configure the cache.
+   *  @param maxEntriesInMemory The number of results to keep in
+   *     memory, or 0 for none.
+   *  @param dir The directory for stored results, or null for none.
+   *  @param maxDirBytes The most disk space that stored results may
+   *     use, in bytes.
+   *  @throws IOException Unable to create or read the directory.
+   */
+  public static synchronized void configure (int maxEntriesInMemory, String dir,
+                                             long maxDirBytes)
+    throws IOException {
+
+    maxEntries = Math.max (maxEntriesInMemory, 0);
+    directory = null;
+    maxDirectoryBytes = Math.max (maxDirBytes, 0);
+    directoryBytes = 0;
+    entries = newEntries ();
+
+    if (dir != null) {
+      directory = Paths.get (dir);
+      Files.createDirectories (directory);
+      trimDirectory (maxDirectoryBytes);
+    }
+  }
+
+  /**
+   *  Look up the results of a query.
+   *  @param q The optimized query tree, before initialization.
+   *  @param model The retrieval model.
+   *  @param length The number of documents requested.
+   *  @return The results, sorted by score and external docid, or null
+   *     if they are not cached.
+   */
+  public static ScoreList get (Qry q, RetrievalModel model, int length) {
+
+    if (! isEnabled ())
+      return null;
+
+    String key = getKey (q, model);
+    Entry entry;
+
+    synchronized (QueryResultCache.class) {
+      entry = entries.get (key);
+    }
+
+    if ((entry == null) && (directory != null)) {
+      entry = read (key);
+
+      if (entry != null)
+        remember (key, entry);
+    }
+
+    //  A result for fewer documents can't answer this request, unless
+    //  it has every matching document.
+
+    if ((entry == null) ||
+        ((entry.length < length) && (entry.docids.length == entry.length)))
+      return null;
+
+    ScoreList results = new ScoreList ();
+    int n = Math.min (entry.docids.length, length);
+
+    for (int i = 0; i < n; i++)
+      results.add (entry.docids[i], entry.scores[i], entry.externalIds[i]);
+
+    return results;
+  }
+
+  /**
+   *  Get the cache key of a query.
+   *  @param q The optimized query tree.
+   *  @param model The retrieval model.
+   *  @return The key.
+   */
+  private static String getKey (Qry q, RetrievalModel model) {
+    return Idx.getIndexId () + "\n" + model.getScoringParameters () + "\n" + q;
+  }
+
+  /**
+   *  Get the file that stores a result.
+   *  @param key The result's key.
+   *  @return The file.
+   */
+  private static Path getPath (String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance ("SHA-256")
+        .digest (key.getBytes (StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder ();
+
+      for (int i = 0; i < 16; i++)
+        name.append (String.format ("%02x", digest[i]));
+
+      return directory.resolve (name.append (".qrc").toString ());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  /**
+   *  Returns true if the cache has been configured to keep results.
+   *  @return True if the cache is enabled.
+   */
+  public static boolean isEnabled () {
+    return ((maxEntries > 0) || (directory != null));
+  }
+
+  /**
+   *  Create the in-memory table, which evicts the least recently used
+   *  result when it is full.
+   *  @return The table.
+   */
+  private static LinkedHashMap<String, Entry> newEntries () {
+    return new LinkedHashMap<String, Entry> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<String, Entry> eldest) {
+        return (this.size () > maxEntries);
+      }
+    };
+  }
+
+  /**
+   *  Store the results of a query.
+   *  @param q The optimized query tree.
+   *  @param model The retrieval model.
+   *  @param length The number of documents that were requested.
+   *  @param results The results, sorted by score and external docid.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static void put (Qry q, RetrievalModel model, int length, ScoreList results)
+    throws IOException {
+
+    if (! isEnabled ())
+      return;
+
+    String key = getKey (q, model);
+    int n = Math.min (results.size (), length);
+    Entry entry = new Entry (length, new int [n], new double [n], new String [n]);
+
+    for (int i = 0; i < n; i++) {
+      entry.docids[i] = results.getDocid (i);
+      entry.scores[i] = results.getDocidScore (i);
+      entry.externalIds[i] = results.getExternalDocid (i);
+    }
+
+    remember (key, entry);
+
+    if (directory != null)
+      write (key, entry);
+  }
+
+  /**
+   *  Read a stored result, and mark it as recently used.
+   *  @param key The result's key.
+   *  @return The result, or null if it isn't stored.
+   */
+  private static Entry read (String key) {
+
+    Path path = getPath (key);
+
+    if (! Files.isReadable (path))
+      return null;
+
+    try (DataInputStream in = new DataInputStream (
+           new BufferedInputStream (Files.newInputStream (path)))) {
+
+      if (in.readInt () != MAGIC)
+        return null;
+
+      byte[] storedKey = new byte [in.readInt ()];
+      in.readFully (storedKey);
+
+      if (! new String (storedKey, StandardCharsets.UTF_8).equals (key))
+        return null;				// A hash collision
+
+      int length = in.readInt ();
+      int n = in.readInt ();
+      Entry entry = new Entry (length, new int [n], new double [n], new String [n]);
+
+      for (int i = 0; i < n; i++) {
+        entry.docids[i] = in.readInt ();
+        entry.scores[i] = in.readDouble ();
+        entry.externalIds[i] = in.readUTF ();
+      }
+
+      Files.setLastModifiedTime (path, FileTime.fromMillis (System.currentTimeMillis ()));
+      return entry;
+    } catch (IOException ex) {
+      return null;				// Treat it as a miss
+    }
+  }
+
+  /**
+   *  Keep a result in memory.
+   *  @param key The result's key.
+   *  @param entry The result.
+   */
+  private static synchronized void remember (String key, Entry entry) {
+    if (maxEntries > 0)
+      entries.put (key, entry);
+  }
+
+  /**
+   *  Store a result in the directory.  It is written to a temporary
+   *  file first, so that readers never see a partial result.  If the
+   *  directory is then over budget, it is trimmed.
+   *  @param key The result's key.
+   *  @param entry The result.
+   */
+  private static void write (String key, Entry entry) {
+
+    Path path = getPath (key);
+
+    try {
+      Path tmpPath = Files.createTempFile (directory, "qrc", ".tmp");
+
+      try (DataOutputStream out = new DataOutputStream (
+             new BufferedOutputStream (Files.newOutputStream (tmpPath)))) {
+        byte[] keyBytes = key.getBytes (StandardCharsets.UTF_8);
+
+        out.writeInt (MAGIC);
+        out.writeInt (keyBytes.length);
+        out.write (keyBytes);
+        out.writeInt (entry.length);
+        out.writeInt (entry.docids.length);
+
+        for (int i = 0; i < entry.docids.length; i++) {
+          out.writeInt (entry.docids[i]);
+          out.writeDouble (entry.scores[i]);
+          out.writeUTF (entry.externalIds[i]);
+        }
+      }
+
+      long size = Files.size (tmpPath);
+
+      Files.move (tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+
+      synchronized (QueryResultCache.class) {
+        directoryBytes += size;
+
+        if (directoryBytes > maxDirectoryBytes)
+          trimDirectory (maxDirectoryBytes / 100 * TRIM_PERCENT);
+      }
+    } catch (IOException ex) {
+      System.err.println ("Warning: Unable to store a cached result: " + ex.getMessage ());
+    }
+  }
+
+  /**
+   *  Delete the least recently used results in the directory until
+   *  they use at most the specified number of bytes.  Other processes
+   *  may share the directory, so it is scanned each time.
+   *  @param targetBytes The disk space that results may use afterwards.
+   *  @throws IOException Unable to read the directory.
+   */
+  private static synchronized void trimDirectory (long targetBytes)
+    throws IOException {
+
+    List<StoredFile> files = new ArrayList<> ();
+    long totalBytes = 0;
+
+    try (Stream<Path> list = Files.list (directory)) {
+      for (Path path : (Iterable<Path>) list::iterator) {
+        if (! path.getFileName ().toString ().endsWith (".qrc"))
+          continue;
+
+        try {
+          StoredFile file = new StoredFile (
+            path, Files.size (path), Files.getLastModifiedTime (path).toMillis ());
+
+          files.add (file);
+          totalBytes += file.size;
+        } catch (IOException ex) {
+          //  Deleted by another process.
+        }
+      }
+    }
+
+    if (totalBytes > targetBytes) {
+      files.sort (Comparator.comparingLong (file -> file.lastUsed));
+
+      for (int i = 0; (i < files.size ()) && (totalBytes > targetBytes); i++) {
+        Files.deleteIfExists (files.get (i).path);
+        totalBytes -= files.get (i).size;
+      }
+    }
+
+    directoryBytes = totalBytes;
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ *  A destination for query results.  A sink is opened once per run,
+ *  receives the results of each query in order, and is closed at the
+ *  end of the run.
+ */
+public interface ResultSink extends Closeable {
+
+  /**
+   *  Open a sink for the results file.
+   *  @param path The results file, which is appended to.
+   *  @param format "trec" (trec_eval text, the default) or "binary".
+   *  @param echo True if text results are also written to System.out.
+   *  @param scoreFormat How text results write scores.
+   *  @return The sink.
+   *  @throws IllegalArgumentException Unknown format.
+   *  @throws IOException Error opening the file.
+   */
+  static ResultSink open (String path, String format, boolean echo,
+                          ScoreFormat scoreFormat)
+    throws IOException {
+
+    if ((format == null) || format.equals ("trec"))
+      return new TrecResultSink (path, echo, scoreFormat);
+    else if (format.equals ("binary"))
+      return new BinaryResultSink (path);
+    else
+      throw new IllegalArgumentException ("Unknown results format: " + format);
+  }
+
+  /**
+   *  Write the top results of one query.
+   *  @param queryName The query id.
+   *  @param results The query's results, sorted by score and external docid.
+   *  @param length The number of results to write.
+   *  @throws IOException Error accessing the Lucene index or writing the results.
+   */
+  void write (String queryName, ScoreList results, int length)
+    throws IOException;
+}
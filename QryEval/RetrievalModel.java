@@ -1,6 +1,7 @@
 /** 
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
+import java.io.IOException;
 
 /**
  *  The root class in the retrieval model hierarchy.  This hierarchy
@@ -16,4 +17,105 @@ public abstract class RetrievalModel {
    */
   public abstract String defaultQrySopName ();
 
+  /**
+   *  Get the scorer of an #AND operator for this retrieval model.
+   *  The getScorer methods are called once per query, when the
+   *  operator is initialized.  Retrieval models override the methods
+   *  of the operators that they support.
+   *  @param q The query operator, whose arguments are initialized.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support the operator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QrySop.Scorer getScorer (QrySopAnd q) throws IOException {
+    throw this.unsupported ("AND");
+  }
+
+  /**
+   *  Get the scorer of an #OR operator for this retrieval model.
+   *  @param q The query operator, whose arguments are initialized.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support the operator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QrySop.Scorer getScorer (QrySopOr q) throws IOException {
+    throw this.unsupported ("OR");
+  }
+
+  /**
+   *  Get the scorer of a #SCORE operator for this retrieval model.
+   *  @param q The query operator, whose argument is initialized.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support the operator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QrySop.Scorer getScorer (QrySopScore q) throws IOException {
+    throw this.unsupported ("SCORE");
+  }
+
+  /**
+   *  Get the scorer of a #SUM operator for this retrieval model.
+   *  @param q The query operator, whose arguments are initialized.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support the operator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QrySop.Scorer getScorer (QrySopSum q) throws IOException {
+    throw this.unsupported ("SUM");
+  }
+
+  /**
+   *  Get the scorer of a #WAND operator for this retrieval model.
+   *  @param q The query operator, whose arguments are initialized.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support the operator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QrySop.Scorer getScorer (QrySopWAnd q) throws IOException {
+    throw this.unsupported ("WAND");
+  }
+
+  /**
+   *  Get the scorer of a #WSUM operator for this retrieval model.
+   *  @param q The query operator, whose arguments are initialized.
+   *  @return The scorer.
+   *  @throws IllegalArgumentException The model doesn't support the operator.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public QrySop.Scorer getScorer (QrySopWSum q) throws IOException {
+    throw this.unsupported ("WSUM");
+  }
+
+  /**
+   *  Describe the parameters that affect document scores, e.g., as
+   *  part of a cache key.  Retrieval models that have such
+   *  parameters must override this method.
+   *  @return The name of the retrieval model and its scoring parameters.
+   */
+  public String getScoringParameters () {
+    return this.getClass ().getName ();
+  }
+
+  /**
+   *  Returns true if #AND, #WAND, and #WSUM match documents that
+   *  contain any of their arguments, and give the others default
+   *  scores (e.g., Indri).  By default, they match only documents
+   *  that contain all of their arguments.
+   *  @return True if any argument is enough for a match.
+   */
+  public boolean matchesAnyArgument () {
+    return false;
+  }
+
+  /**
+   *  Create the exception for a query operator that this retrieval
+   *  model doesn't support.
+   *  @param operatorName The name of the query operator, e.g., "AND".
+   *  @return The exception.
+   */
+  protected IllegalArgumentException unsupported (String operatorName) {
+    return new IllegalArgumentException
+      (this.getClass ().getName () + " doesn't support the " + operatorName + " operator.");
+  }
+
 }
@@ -1,12 +1,117 @@
+import java.io.IOException;
+import java.util.function.DoubleBinaryOperator;
+
 public class RetrievalModelBM25 extends RetrievalModel{
 	double k_1;
 	double b;
 	double k_3;
+
+	/**
+	 *  How #sum finds the top documents:  "none" scores every document
+	 *  that contains a query term, "maxscore", "wand" and "bmw"
+	 *  (Block-Max WAND) skip documents that can't enter the top k.
+	 *  All produce the same ranking.
+	 */
+	String pruning = "none";
 	
+	/**
+	 *  #SUM:  The sum of the scores of the arguments that match the
+	 *  document.
+	 */
+	static final class SumScorer implements QrySop.Scorer {
+		private final QrySopSum q;
+		private final QrySop[] args;
+
+		SumScorer(QrySopSum q) {
+			this.q = q;
+			this.args = q.getSopArgs();
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			if (!q.docIteratorHasMatch(r))
+				return 0.0;
+			int docid = q.docIteratorGetMatch();
+			double score = 0.0;
+			for (QrySop q_i : args) {
+				if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
+					score += q_i.getScore(r);
+			}
+			return score;
+		}
+	}
+
+	/**
+	 *  #SCORE:  The BM25 score of a term.  The document-independent
+	 *  parts of the formula are computed once per query.
+	 */
+	static final class ScoreScorer implements QrySop.Scorer, DoubleBinaryOperator {
+		private final QryIop q;
+		private final int[] docLengths;	// Field length of each document
+		private final double k_1;
+		private final double oneMinusB;	// 1 - b
+		private final double b;
+		private final double avgLen;	// Average field length
+		private final double rsjWeight;	// Robertson-Sparck Jones (idf) weight
+		private final double userWeight;
+
+		ScoreScorer(QrySopScore q, RetrievalModelBM25 bm25) throws IOException {
+			this.q = (QryIop) q.args.get(0);
+
+			String field = this.q.getField();
+			long doc_num = Idx.getNumDocs();
+			double df = this.q.getDf();
+
+			this.docLengths = Idx.getFieldLengths(field);
+			this.k_1 = bm25.k_1;
+			this.b = bm25.b;
+			this.oneMinusB = 1 - bm25.b;
+			this.avgLen = Idx.getSumOfFieldLengths(field) / (double) Idx.getDocCount(field);
+			this.rsjWeight = Math.max(0, Math.log((doc_num - df + 0.5) / (df + 0.5)));
+			this.userWeight = (bm25.k_3 + 1) * 1 / (bm25.k_3 + 1);
+
+			q.setScoreBounds(this, Double.POSITIVE_INFINITY);
+		}
+
+		/**
+		 *  The score of a document that has a tf and a field length.
+		 */
+		public double applyAsDouble(double tf, double doc_len) {
+			double tf_weight = tf / (tf + k_1 * (oneMinusB + b * doc_len / avgLen));
+
+			return rsjWeight * tf_weight * userWeight;
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			if (q.docIteratorHasMatch(r)) {
+				double doc_len = this.docLengths[q.docIteratorGetMatch()];
+				double tf = q.docIteratorGetMatchTf();
+
+				return this.applyAsDouble(tf, doc_len);
+			}
+			return 0.0;
+		}
+	}
+
 	public String defaultQrySopName () {
 		    return new String ("#sum");
 	}
 
+	/**
+	 *  The pruning strategy is not included, because it doesn't
+	 *  change scores.
+	 */
+	public String getScoringParameters () {
+		return "bm25 k_1=" + k_1 + " b=" + b + " k_3=" + k_3;
+	}
+
+	public QrySop.Scorer getScorer(QrySopScore q) throws IOException {
+		return new ScoreScorer(q, this);
+	}
+
+	public QrySop.Scorer getScorer(QrySopSum q) {
+		return new SumScorer(q);
+	}
+
 	public static void main() {
 		// TODO Auto-generated method stub
 
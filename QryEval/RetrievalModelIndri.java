@@ -1,6 +1,18 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+
 public class RetrievalModelIndri extends RetrievalModel{
 	public double mu;
 	public double lambda;
+
+	/**
+	 *  How #and and #wand find the top documents:  "none" scores every
+	 *  document that contains a query term, "wand" and "bmw" (Block-Max
+	 *  WAND) skip documents that can't enter the top k.  All produce
+	 *  the same ranking.
+	 */
+	public String pruning = "none";
 	
 	// fb parameters
 	public boolean fb = false;
@@ -11,9 +23,197 @@ public class RetrievalModelIndri extends RetrievalModel{
 	public String fbInitialRankingFile = "";
 	public String fbExpansionQueryFile = "";
 	
+	/**
+	 *  #AND and #WAND:  The weighted geometric mean of the scores of
+	 *  the arguments, which give default scores to documents that
+	 *  they don't match.
+	 */
+	static final class AndScorer implements QrySop.Scorer {
+		private final QrySop q;
+		private final QrySop[] args;
+		private final double[] exponents;	// Weight / sum of weights
+
+		AndScorer(QrySop q, double[] exponents) {
+			this.q = q;
+			this.args = q.getSopArgs();
+			this.exponents = exponents;
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			int docid = q.docIteratorGetMatch();
+			double score = 1.0;
+
+			for (int i = 0; i < args.length; i++) {
+				QrySop q_i = args[i];
+
+				if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
+					score *= Math.pow(q_i.getScore(r), exponents[i]);
+				else
+					score *= Math.pow(q_i.getDefaultScore(r, docid), exponents[i]);
+			}
+
+			return score;
+		}
+
+		public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+			double score = 1.0;
+
+			for (int i = 0; i < args.length; i++)
+				score *= Math.pow(args[i].getDefaultScore(r, docid), exponents[i]);
+
+			return score;
+		}
+	}
+
+	/**
+	 *  #WSUM:  The weighted mean of the scores of the arguments, which
+	 *  give default scores to documents that they don't match.
+	 */
+	static final class WSumScorer implements QrySop.Scorer {
+		private final QrySop q;
+		private final QrySop[] args;
+		private final double[] weights;
+		private final double sumWeight;
+
+		WSumScorer(QrySopWSum q) {
+			this.q = q;
+			this.args = q.getSopArgs();
+			this.weights = new double[args.length];
+			for (int i = 0; i < args.length; i++)
+				this.weights[i] = q.weights.get(i);
+			this.sumWeight = q.sumWeight();
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			int docid = q.docIteratorGetMatch();
+			double score = 0.0;
+
+			for (int i = 0; i < args.length; i++) {
+				QrySop q_i = args[i];
+
+				if (q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == docid)
+					score += q_i.getScore(r) * weights[i] / sumWeight;
+				else
+					score += q_i.getDefaultScore(r, docid) * weights[i] / sumWeight;
+			}
+
+			return score;
+		}
+
+		public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+			double score = 0.0;
+
+			for (int i = 0; i < args.length; i++)
+				score += args[i].getDefaultScore(r, docid) * weights[i] / sumWeight;
+
+			return score;
+		}
+	}
+
+	/**
+	 *  #SCORE:  The smoothed probability of a term.  The
+	 *  document-independent parts of the formula are computed once
+	 *  per query.
+	 */
+	static final class ScoreScorer implements QrySop.Scorer, DoubleBinaryOperator {
+		private final QryIop q;
+		private final int[] docLengths;	// Field length of each document
+		private final double mu;
+		private final double oneMinusLambda;	// 1 - lambda
+		private final double muMle;		// mu * ctf / collection length
+		private final double lambdaMle;	// lambda * ctf / collection length
+		private final double defaultNumerator;	// (1 - lambda) * mu * mle for tf=0
+		private final double defaultLambdaMle;	// lambdaMle, with ctf=0.5 if ctf=0
+
+		ScoreScorer(QrySopScore q, RetrievalModelIndri indri) throws IOException {
+			this.q = (QryIop) q.args.get(0);
+
+			String field = this.q.getField();
+			double collection_len = Idx.getSumOfFieldLengths(field);
+			double ctf = this.q.getCtf();
+			double mle = ctf / collection_len;
+
+			this.docLengths = Idx.getFieldLengths(field);
+			this.mu = indri.mu;
+			this.oneMinusLambda = 1.0 - indri.lambda;
+			this.muMle = indri.mu * mle;
+			this.lambdaMle = indri.lambda * mle;
+
+			//  Documents that don't match get extra smoothing when ctf=0.
+
+			if (Math.abs(ctf - 0) < 1e-9)
+				ctf = 0.5;
+
+			mle = ctf / collection_len;
+			this.defaultNumerator = (1.0 - indri.lambda) * (indri.mu * mle);
+			this.defaultLambdaMle = indri.lambda * mle;
+
+			q.setScoreBounds(this, defaultNumerator / mu + defaultLambdaMle);
+		}
+
+		/**
+		 *  The score of a document that has a tf and a field length.
+		 */
+		public double applyAsDouble(double tf, double doc_len) {
+			return oneMinusLambda * (tf + muMle) / (doc_len + mu) + lambdaMle;
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			double tf = q.docIteratorGetMatchTf();
+			double doc_len = this.docLengths[q.docIteratorGetMatch()];
+
+			return this.applyAsDouble(tf, doc_len);
+		}
+
+		public double getDefaultScore(RetrievalModel r, long docid) {
+			double doc_len = this.docLengths[(int) docid];
+
+			return defaultNumerator / (doc_len + mu) + defaultLambdaMle;
+		}
+	}
+
 	public String defaultQrySopName () {
 	    return new String ("#and");
 	}
+
+	/**
+	 *  The pruning strategy is not included, because it doesn't
+	 *  change scores.  Query expansion changes the query, not how it
+	 *  is scored.
+	 */
+	public String getScoringParameters () {
+		return "indri mu=" + mu + " lambda=" + lambda;
+	}
+
+	public QrySop.Scorer getScorer(QrySopAnd q) {
+		double[] exponents = new double[q.args.size()];
+		Arrays.fill(exponents, 1.0 / q.args.size());
+		return new AndScorer(q, exponents);
+	}
+
+	public QrySop.Scorer getScorer(QrySopScore q) throws IOException {
+		return new ScoreScorer(q, this);
+	}
+
+	public QrySop.Scorer getScorer(QrySopWAnd q) {
+		double[] exponents = new double[q.args.size()];
+		for (int i = 0; i < exponents.length; i++)
+			exponents[i] = q.weights.get(i) / q.sumWeight();
+		return new AndScorer(q, exponents);
+	}
+
+	public QrySop.Scorer getScorer(QrySopWSum q) {
+		return new WSumScorer(q);
+	}
+
+	/**
+	 *  Indri gives default scores to documents that an argument
+	 *  doesn't match.
+	 */
+	public boolean matchesAnyArgument() {
+		return true;
+	}
+
 	public RetrievalModelIndri(double mu, double lambda) {
 		this.mu = mu;
 		this.lambda = lambda;
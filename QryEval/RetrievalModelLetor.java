@@ -10,6 +10,7 @@ public class RetrievalModelLetor extends RetrievalModel{
 	public double k_1, k_3, b;
 	public double mu, lambda;
 	public String queryFilePath;
+	public int termVectorCacheSize = 1000;	// TermVectors shared by features
 	
 	
 
@@ -41,6 +42,8 @@ public class RetrievalModelLetor extends RetrievalModel{
 		this.k_3 = Double.parseDouble(parameters.get("BM25:k_1"));
 		this.mu = Double.parseDouble(parameters.get("Indri:mu"));
 		this.lambda = Double.parseDouble(parameters.get("Indri:lambda"));		
+		if (parameters.containsKey("letor:termVectorCacheSize"))
+			this.termVectorCacheSize = Integer.parseInt(parameters.get("letor:termVectorCacheSize"));
 		
 	}
 }
@@ -1,10 +1,102 @@
+import java.io.IOException;
 
 public class RetrievalModelRankedBoolean extends RetrievalModel{
+
+	/**
+	 *  #AND:  The min score among the arguments that match the document.
+	 */
+	static final class AndScorer implements QrySop.Scorer {
+		private final QrySopAnd q;
+
+		AndScorer(QrySopAnd q) {
+			this.q = q;
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			if (! q.docIteratorHasMatchCache()) {
+				return 0.0;
+			} else {
+				double min = Double.MAX_VALUE;
+				for (Qry q_i : q.args) {
+					if (q_i.docIteratorHasMatch(r)) {
+						if (q_i.docIteratorGetMatch() == q.docIteratorGetMatch()) {
+							double curr_score = ((QrySop) q_i).getScore(r);
+							if (curr_score < min) {
+								min = curr_score;
+							}
+						}
+					}
+				}
+				return min;
+			}
+		}
+	}
+
+	/**
+	 *  #OR:  The max score among the arguments that match the document.
+	 */
+	static final class OrScorer implements QrySop.Scorer {
+		private final QrySopOr q;
+
+		OrScorer(QrySopOr q) {
+			this.q = q;
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			if (! q.docIteratorHasMatchCache()) {
+				return 0.0;
+			} else {
+				double max = 0.0;
+				for (Qry q_i : q.args) {
+					if (q_i.docIteratorHasMatch(r)) {
+						if (q_i.docIteratorGetMatch() == q.docIteratorGetMatch()) {
+							double cur_score = ((QrySop) q_i).getScore(r);
+							if (cur_score > max) {
+								max = cur_score;
+							}
+						}
+					}
+				}
+				return max;
+			}
+		}
+	}
+
+	/**
+	 *  #SCORE:  The term frequency.
+	 */
+	static final class ScoreScorer implements QrySop.Scorer {
+		private final QrySopScore q;
+
+		ScoreScorer(QrySopScore q) {
+			this.q = q;
+		}
+
+		public double getScore(RetrievalModel r) throws IOException {
+			if (! q.docIteratorHasMatchCache()) {
+				return 0.0;
+			} else {
+				return ((QryIop) q.args.get(0)).docIteratorGetMatchTf();
+			}
+		}
+	}
 	
 	  public String defaultQrySopName () {
 		    return new String ("#or");
 		  }
 
+	public QrySop.Scorer getScorer(QrySopAnd q) {
+		return new AndScorer(q);
+	}
+
+	public QrySop.Scorer getScorer(QrySopOr q) {
+		return new OrScorer(q);
+	}
+
+	public QrySop.Scorer getScorer(QrySopScore q) {
+		return new ScoreScorer(q);
+	}
+
 	public static void main(String[] args) {
 		// TODO Auto-generated method stub
 
@@ -9,8 +9,40 @@
  */
 public class RetrievalModelUnrankedBoolean extends RetrievalModel {
 
+  /**
+   *  Scores 1.0 for each document that the query operator matches.
+   *  The same scorer serves #AND, #OR, and #SCORE.
+   */
+  static final class MatchScorer implements QrySop.Scorer {
+    private final QrySop q;
+
+    MatchScorer (QrySop q) {
+      this.q = q;
+    }
+
+    public double getScore (RetrievalModel r) {
+      if (! this.q.docIteratorHasMatchCache ()) {
+        return 0.0;
+      } else {
+        return 1.0;
+      }
+    }
+  }
+
   public String defaultQrySopName () {
     return new String ("#or");
   }
 
+  public QrySop.Scorer getScorer (QrySopAnd q) {
+    return new MatchScorer (q);
+  }
+
+  public QrySop.Scorer getScorer (QrySopOr q) {
+    return new MatchScorer (q);
+  }
+
+  public QrySop.Scorer getScorer (QrySopScore q) {
+    return new MatchScorer (q);
+  }
+
 }
@@ -0,0 +1,365 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ *  Converts scores and feature values to decimal text for the output
+ *  files.  There are three modes.
+ *  <ul>
+ *  <li>shortest:  The shortest decimal that parses back to the same
+ *      double, e.g., 0.1 instead of the 55 digits of its binary value.
+ *      Parsing the output (trec_eval, svm_rank) is exact.  The digits
+ *      come from the Schubfach algorithm (R. Giulietti, "The Schubfach
+ *      way to render doubles", 2020), which is what Double.toString
+ *      uses since Java 19; older Double.toString sometimes gives an
+ *      extra digit.  As in Java 19, a one-digit result gets a second
+ *      digit when that is closer, e.g., 4.9E-324.</li>
+ *  <li>n (e.g., 6):  The shortest decimal, rounded (half up) to n
+ *      significant digits.  Smaller, but not exact.</li>
+ *  <li>exact:  The exact decimal value of the double, as printed by
+ *      BigDecimal.  This is the slowest and longest.</li>
+ *  </ul>
+ *  Values are written in plain notation unless they are very large
+ *  or very small, e.g., 1.5E-9.
+ */
+public class ScoreFormat {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int EXACT = -1;
+  private static final int SHORTEST = 0;
+
+  /**
+   *  The shortest format, which is the default.
+   */
+  public static final ScoreFormat DEFAULT = new ScoreFormat (SHORTEST);
+
+  private final int precision;		// EXACT, SHORTEST, or digits
+
+  //  Schubfach constants for doubles.  See section 9 of the paper.
+
+  private static final int Q_MIN = -1074;	// Smallest binary exponent
+  private static final long C_MIN = 1L << 52;	// Smallest normal significand
+  private static final long C_TINY = 3;		// Subnormals below need dk = -1
+  private static final int K_MIN = -324;	// Range of decimal exponents
+  private static final int K_MAX = 292;
+  private static final long MASK_63 = 0x7FFF_FFFF_FFFF_FFFFL;
+
+  //  g1 and g0 for each k in [K_MIN, K_MAX], where 10^-k = &beta; 2^r,
+  //  2^125 &lt;= &beta; &lt; 2^126, and floor(&beta;) + 1 = g1 2^63 + g0.
+
+  private static final long[] G = powersOfTen ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param precision EXACT, SHORTEST, or a number of significant digits.
+   */
+  private ScoreFormat (int precision) {
+    this.precision = precision;
+  }
+
+  /**
+   *  Append a value to a buffer.
+   *  @param out The buffer.
+   *  @param x The value.
+   *  @return The buffer.
+   */
+  public StringBuilder append (StringBuilder out, double x) {
+
+    if (this.precision == EXACT)
+      return out.append (new BigDecimal (x).toString ());
+
+    if (Double.isNaN (x) || Double.isInfinite (x))
+      return out.append (x);
+
+    if (x == 0.0)
+      return out.append ('0');
+
+    if (x < 0) {
+      out.append ('-');
+      x = -x;
+    }
+
+    //  Collect the shortest digits, without trailing zeros, as
+    //  0.digits &times; 10^point.
+
+    char[] digits = new char [20];
+    int decimal = toDecimal (x, digits);
+    int n = decimal & 0x1F;
+    int point = decimal >> 5;
+
+    //  Round to the requested precision.
+
+    if ((this.precision > 0) && (n > this.precision)) {
+      boolean roundUp = (digits[this.precision] >= '5');
+      n = this.precision;
+
+      for (int j = n - 1; roundUp && (j >= 0); j--) {
+        if (digits[j] == '9') {
+          digits[j] = '0';
+        } else {
+          digits[j] ++;
+          roundUp = false;
+        }
+      }
+
+      if (roundUp) {			// 9.99 became 10.0
+        digits[0] = '1';
+        n = 1;
+        point ++;
+      }
+    }
+
+    while ((n > 1) && (digits[n - 1] == '0'))
+      n --;
+
+    //  Plain or scientific notation.
+
+    if ((point < -6) || (point > 21)) {
+      out.append (digits[0]);
+
+      if (n > 1)
+        out.append ('.').append (digits, 1, n - 1);
+
+      return out.append ('E').append (point - 1);
+    }
+
+    if (point <= 0) {
+      out.append ("0.");
+
+      for (int j = point; j < 0; j++)
+        out.append ('0');
+
+      return out.append (digits, 0, n);
+    }
+
+    if (point < n)
+      return out.append (digits, 0, point).append ('.').append (digits, point, n - point);
+
+    out.append (digits, 0, n);
+
+    for (int j = n; j < point; j++)
+      out.append ('0');
+
+    return out;
+  }
+
+  /**
+   *  Compute the table of g1 and g0 values.
+   *  @return The table, two entries per k.
+   */
+  private static long[] powersOfTen () {
+    long[] g = new long [2 * (K_MAX - K_MIN + 1)];
+
+    for (int k = K_MIN; k <= K_MAX; k++) {
+      BigInteger beta;
+
+      if (k <= 0) {
+        BigInteger p = BigInteger.TEN.pow (-k);
+        int shift = 126 - p.bitLength ();
+
+        beta = (shift >= 0) ? p.shiftLeft (shift) : p.shiftRight (-shift);
+      } else {
+        BigInteger p = BigInteger.TEN.pow (k);
+
+        beta = BigInteger.ONE.shiftLeft (125 + p.bitLength ()).divide (p);
+      }
+
+      beta = beta.add (BigInteger.ONE);
+      g[2 * (k - K_MIN)] = beta.shiftRight (63).longValue ();
+      g[2 * (k - K_MIN) + 1] = beta.longValue () & MASK_63;
+    }
+
+    return g;
+  }
+
+  /**
+   *  Find the shortest decimal that parses back to a positive, finite
+   *  double.
+   *  @param v The value.
+   *  @param digits The digits, without trailing zeros.
+   *  @return point &times; 32 + the number of digits, where the value
+   *    is 0.digits &times; 10^point.
+   */
+  private static int toDecimal (double v, char[] digits) {
+    long bits = Double.doubleToRawLongBits (v);
+    long t = bits & (C_MIN - 1);
+    int bq = (int) (bits >>> 52) & 0x7FF;
+
+    if (bq == 0)			// Subnormal
+      return (t < C_TINY) ?
+        toDecimal (Q_MIN, 10 * t, -1, digits) :
+        toDecimal (Q_MIN, t, 0, digits);
+
+    int mq = -Q_MIN + 1 - bq;
+    long c = C_MIN | t;
+
+    //  Small integers are exact.
+
+    if ((0 < mq) && (mq < 53) && (((c >> mq) << mq) == c))
+      return toChars (c >> mq, 0, digits);
+
+    return toDecimal (-mq, c, 0, digits);
+  }
+
+  /**
+   *  The Schubfach algorithm for v = c &times; 2^q.  See figure 7 of
+   *  the paper.
+   *  @param q The binary exponent.
+   *  @param c The significand.
+   *  @param dk Added to the decimal exponent.
+   *  @param digits The digits, without trailing zeros.
+   *  @return point &times; 32 + the number of digits.
+   */
+  private static int toDecimal (int q, long c, int dk, char[] digits) {
+    int out = (int) c & 0x1;		// Odd c excludes the bounds
+    long cb = c << 2;
+    long cbr = cb + 2;
+    long cbl;
+    int k;
+
+    if ((c != C_MIN) || (q == Q_MIN)) {	// Regular spacing
+      cbl = cb - 2;
+      k = flog10pow2 (q);
+    } else {				// Irregular spacing
+      cbl = cb - 1;
+      k = flog10threeQuartersPow2 (q);
+    }
+
+    int h = q + flog2pow10 (-k) + 2;
+    long g1 = G[2 * (k - K_MIN)];
+    long g0 = G[2 * (k - K_MIN) + 1];
+    long vb = rop (g1, g0, cb << h);
+    long vbl = rop (g1, g0, cbl << h);
+    long vbr = rop (g1, g0, cbr << h);
+    long s = vb >> 2;
+
+    //  Try one digit fewer:  sp10 = 10 floor(s / 10).
+
+    if (s >= 100) {
+      long sp10 = 10 * Math.multiplyHigh (s, 115_292_150_460_684_698L << 4);
+      long tp10 = sp10 + 10;
+      boolean upin = (vbl + out <= sp10 << 2);
+      boolean wpin = ((tp10 << 2) + out <= vbr);
+
+      if (upin != wpin)
+        return toChars (upin ? sp10 : tp10, k, digits);
+    }
+
+    //  Otherwise s or s + 1, whichever is in the rounding interval,
+    //  or the closer one (even on ties) if both are.
+
+    long t = s + 1;
+    boolean uin = (vbl + out <= s << 2);
+    boolean win = ((t << 2) + out <= vbr);
+
+    if (uin != win)
+      return toChars (uin ? s : t, k + dk, digits);
+
+    long cmp = vb - ((s + t) << 1);
+
+    return toChars (
+      ((cmp < 0) || ((cmp == 0) && ((s & 0x1) == 0))) ? s : t,
+      k + dk, digits);
+  }
+
+  /**
+   *  Round cp &times; g &times; 2^-127 to odd.  See figure 8 of the
+   *  paper.
+   */
+  private static long rop (long g1, long g0, long cp) {
+    long x1 = Math.multiplyHigh (g0, cp);
+    long y0 = g1 * cp;
+    long y1 = Math.multiplyHigh (g1, cp);
+    long z = (y0 >>> 1) + x1;
+    long vbp = y1 + (z >>> 63);
+
+    return vbp | (((z & MASK_63) + MASK_63) >>> 63);
+  }
+
+  /**
+   *  floor(log10(2^e)), for |e| &lt;= 5456721.
+   */
+  private static int flog10pow2 (int e) {
+    return (int) ((e * 661_971_961_083L) >> 41);
+  }
+
+  /**
+   *  floor(log10(3/4 2^e)), for |e| &lt;= 5456721.
+   */
+  private static int flog10threeQuartersPow2 (int e) {
+    return (int) ((e * 661_971_961_083L - 274_743_187_321L) >> 41);
+  }
+
+  /**
+   *  floor(log2(10^e)), for |e| &lt;= 1838394.
+   */
+  private static int flog2pow10 (int e) {
+    return (int) ((e * 913_124_641_741L) >> 38);
+  }
+
+  /**
+   *  Write the digits of f &times; 10^e, without trailing zeros.
+   *  @param f The decimal significand, &gt; 0.
+   *  @param e The decimal exponent.
+   *  @param digits The digits.
+   *  @return point &times; 32 + the number of digits.
+   */
+  private static int toChars (long f, int e, char[] digits) {
+    int end = digits.length;
+    int start = end;
+
+    while ((f % 10) == 0) {
+      f /= 10;
+      e ++;
+    }
+
+    for (; f > 0; f /= 10)
+      digits[--start] = (char) ('0' + (int) (f % 10));
+
+    int n = end - start;
+
+    System.arraycopy (digits, start, digits, 0, n);
+    return ((n + e) << 5) | n;
+  }
+
+  /**
+   *  Convert a value to a string.
+   *  @param x The value.
+   *  @return The string.
+   */
+  public String format (double x) {
+    return this.append (new StringBuilder (24), x).toString ();
+  }
+
+  /**
+   *  Get a format by name.
+   *  @param name "shortest" (or null), "exact", or a number of
+   *    significant digits.
+   *  @return The format.
+   *  @throws IllegalArgumentException Unknown format.
+   */
+  public static ScoreFormat forName (String name) {
+
+    if ((name == null) || name.equals ("shortest"))
+      return DEFAULT;
+    else if (name.equals ("exact"))
+      return new ScoreFormat (EXACT);
+
+    try {
+      int digits = Integer.parseInt (name);
+
+      if ((digits >= 1) && (digits <= 17))
+        return new ScoreFormat (digits);
+    } catch (NumberFormatException ex) {
+      //  Fall through to the error.
+    }
+
+    throw new IllegalArgumentException (
+      "scoreFormat must be shortest, exact, or 1-17 digits, not " + name);
+  }
+}
@@ -0,0 +1,245 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ *  A bounded collector of the top k &lt;internalDocid, score&gt; pairs.
+ *  It is a min-heap whose root is the worst document kept so far, so
+ *  a new document is compared to just one entry, and most documents
+ *  are rejected without any allocation.  Documents are ranked the
+ *  same way as ScoreList.sort:  by score, and then by external
+ *  document id.  External ids are looked up only to break ties.
+ */
+public class ScoreHeap {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int capacity;
+  private int size = 0;
+  private final int[] docids;
+  private final double[] scores;
+  private final String[] externalIds;	// Looked up on demand; may be null
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param capacity The number of documents to keep (k).
+   */
+  public ScoreHeap (int capacity) {
+    this.capacity = Math.max (capacity, 0);
+    this.docids = new int [this.capacity];
+    this.scores = new double [this.capacity];
+    this.externalIds = new String [this.capacity];
+  }
+
+  /**
+   *  Offer a document to the collector.  It is kept if it is one of
+   *  the top k documents seen so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void add (int docid, double score) throws IOException {
+    this.add (docid, score, null);
+  }
+
+  /**
+   *  Offer a document whose external id may already be known to the
+   *  collector.  It is kept if it is one of the top k documents seen
+   *  so far.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @param externalId The document's external id, or null if it is not known.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void add (int docid, double score, String externalId)
+    throws IOException {
+
+    if (this.size < this.capacity) {
+      this.docids[this.size] = docid;
+      this.scores[this.size] = score;
+      this.externalIds[this.size] = externalId;
+      this.siftUp (this.size);
+      this.size ++;
+      return;
+    }
+
+    if ((this.capacity == 0) || (score < this.scores[0]))
+      return;
+
+    if (score == this.scores[0]) {
+      if (externalId == null)
+        externalId = Idx.getExternalDocid (docid);
+
+      if (externalId.compareTo (this.getExternalId (0)) >= 0)
+	return;
+    }
+
+    this.docids[0] = docid;
+    this.scores[0] = score;
+    this.externalIds[0] = externalId;
+    this.siftDown (0);
+  }
+
+  /**
+   *  Offer all of the documents of another collector to this one,
+   *  e.g., to merge the top documents of several segments.  The
+   *  external ids that the other collector looked up are kept.
+   *  @param other The other collector, which isn't changed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public void addAll (ScoreHeap other) throws IOException {
+    for (int i = 0; i < other.size; i++)
+      this.add (other.docids[i], other.scores[i], other.externalIds[i]);
+  }
+
+  /**
+   *  Get the score that a new document must reach to be kept.  A
+   *  document with exactly this score is kept only if it wins the
+   *  tie on external document id.
+   *  @return The lowest competitive score.
+   */
+  public double getMinCompetitiveScore () {
+    if (this.size < this.capacity)
+      return Double.NEGATIVE_INFINITY;
+    else if (this.capacity == 0)
+      return Double.POSITIVE_INFINITY;
+    else
+      return this.scores[0];
+  }
+
+  /**
+   *  Get the external document id of the i'th heap entry, looking it
+   *  up if necessary.
+   *  @param i The index of a heap entry.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private String getExternalId (int i) throws IOException {
+    if (this.externalIds[i] == null)
+      this.externalIds[i] = Idx.getExternalDocid (this.docids[i]);
+
+    return this.externalIds[i];
+  }
+
+  /**
+   *  Returns true if the i'th heap entry ranks below the j'th entry.
+   *  @param i The index of a heap entry.
+   *  @param j The index of a heap entry.
+   *  @return True if entry i is worse than entry j.
+   */
+  private boolean isWorse (int i, int j) {
+    if (this.scores[i] != this.scores[j])
+      return (this.scores[i] < this.scores[j]);
+
+    try {
+      return (this.getExternalId (i).compareTo (this.getExternalId (j)) > 0);
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Restore the heap property below entry i.
+   *  @param i The index of a heap entry.
+   */
+  private void siftDown (int i) {
+
+    while (true) {
+      int worst = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+
+      if ((left < this.size) && this.isWorse (left, worst))
+	worst = left;
+
+      if ((right < this.size) && this.isWorse (right, worst))
+	worst = right;
+
+      if (worst == i)
+	return;
+
+      this.swap (i, worst);
+      i = worst;
+    }
+  }
+
+  /**
+   *  Restore the heap property above entry i.
+   *  @param i The index of a heap entry.
+   */
+  private void siftUp (int i) {
+
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (! this.isWorse (i, parent))
+	return;
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   *  Get the number of documents in the collector.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Swap two heap entries.
+   *  @param i The index of a heap entry.
+   *  @param j The index of a heap entry.
+   */
+  private void swap (int i, int j) {
+    int docid = this.docids[i];
+    double score = this.scores[i];
+    String externalId = this.externalIds[i];
+
+    this.docids[i] = this.docids[j];
+    this.scores[i] = this.scores[j];
+    this.externalIds[i] = this.externalIds[j];
+
+    this.docids[j] = docid;
+    this.scores[j] = score;
+    this.externalIds[j] = externalId;
+  }
+
+  /**
+   *  Empty the collector into a score list that is sorted by score
+   *  and external document id.
+   *  @return The sorted score list.
+   */
+  public ScoreList toScoreList () {
+
+    int n = this.size;
+    int[] sortedDocids = new int [n];
+    double[] sortedScores = new double [n];
+    String[] sortedExternalIds = new String [n];
+
+    //  Removing the root repeatedly produces the documents from worst
+    //  to best.
+
+    for (int i = n - 1; i >= 0; i--) {
+      sortedDocids[i] = this.docids[0];
+      sortedScores[i] = this.scores[0];
+      sortedExternalIds[i] = this.externalIds[0];
+      this.size --;
+      this.swap (0, this.size);
+      this.siftDown (0);
+    }
+
+    ScoreList result = new ScoreList ();
+
+    for (int i = 0; i < n; i++)
+      result.add (sortedDocids[i], sortedScores[i], sortedExternalIds[i]);
+
+    return result;
+  }
+}
@@ -2,6 +2,7 @@
  *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -14,7 +15,7 @@ import java.util.List;
 public class ScoreList {
 
   //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  //  object.  The external docid is looked up only when it is needed.
 
   private class ScoreListEntry {
     private int docid;
@@ -24,13 +25,13 @@ public class ScoreList {
     private ScoreListEntry(int internalDocid, double score) {
       this.docid = internalDocid;
       this.score = score;
+    }
 
-      try {
+    private String getExternalId () throws IOException {
+      if (this.externalId == null)
 	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
+
+      return this.externalId;
     }
   }
 
@@ -48,6 +49,19 @@ public class ScoreList {
     scores.add(new ScoreListEntry(docid, score));
   }
 
+  /**
+   *  Append a document score to a score list when the document's
+   *  external id is already known.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @param externalId The document's external id, or null if it is not known.
+   */
+  public void add(int docid, double score, String externalId) {
+    ScoreListEntry entry = new ScoreListEntry(docid, score);
+    entry.externalId = externalId;
+    scores.add(entry);
+  }
+
   /**
    *  Get the internal docid of the n'th entry.
    *  @param n The index of the requested document.
@@ -57,6 +71,17 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   *  Get the external docid of the n'th entry.  It is looked up in the
+   *  index the first time that it is needed.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public String getExternalDocid(int n) throws IOException {
+    return this.scores.get(n).getExternalId();
+  }
+
   /**
    *  Get the score of the n'th entry.
    *  @param n The index of the requested document score.
@@ -85,7 +110,7 @@ public class ScoreList {
 
   /*
    *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
+   *  external docid.  External docids are looked up only for ties.
    */
   public class ScoreListComparator implements Comparator<ScoreListEntry> {
 
@@ -97,7 +122,12 @@ public class ScoreList {
 	if (s1.score < s2.score)
 	  return 1;
 	else
-		return s1.externalId.compareTo(s2.externalId);
+	  try {
+	    return s1.getExternalId().compareTo(s2.getExternalId());
+	  }
+	  catch (IOException ex) {
+	    throw new UncheckedIOException (ex);
+	  }
 		
 	  //if (s1.docid > s2.docid)
 	    //return 1;
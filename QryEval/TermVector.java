@@ -3,7 +3,18 @@
  */
 
 import java.io.IOException;
-
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
@@ -18,6 +29,13 @@ import org.apache.lucene.index.TermsEnum;
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *  </pre>
+ *  <p>
+ *  The stems and their frequencies are read when the TermVector is
+ *  created.  Decoding positions is most of the cost of reading a term
+ *  vector, so unless the caller asks for them up front, positions are
+ *  decoded only when positionsLength or stemAt is first called.  A
+ *  TermVector may be shared by several threads.
+ *  </p>
  */
 public class TermVector {
 
@@ -35,26 +53,53 @@ public class TermVector {
 
   private int fieldLength;
   private Terms luceneTerms;
-  private int[] positions;	// Index of the stem that at this position
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
-  private Term[] terms;
+
+  /**
+   *  Loaded on demand:  the last position + 1 (-1 until it is known),
+   *  the index of the stem at each position, and the index of each
+   *  stem in stems.
+   */
+  private volatile int positionsLength = -1;
+  private volatile int[] positions;
+  private volatile Map<String, Integer> stemIndexes;
 
   //  --------------- Methods ---------------------------------------
 
   /**
+   *  Create a TermVector.  Positions are loaded when they are first
+   *  needed.
    *  @param docId An internal document id
    *  @param fieldName The name of a document field.
    *  @throws IOException Error accessing the Lucene index
    **/
   public TermVector(int docId, String fieldName) throws IOException {
+    this (docId, fieldName, false);
+  }
+
+  /**
+   *  Create a TermVector, choosing what to load now.  The stems and
+   *  their frequencies are always loaded.  Positions are loaded now
+   *  if loadPositions is true, otherwise when they are first needed;
+   *  callers that only need stems and frequencies never decode them.
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @param loadPositions True if the positions array should be loaded now.
+   *  @throws IOException Error accessing the Lucene index
+   **/
+  public TermVector(int docId, String fieldName, boolean loadPositions)
+    throws IOException {
     this.docId = docId;
     this.fieldName = fieldName;
     this.fieldLength = 0;
 
     //  Fetch the term vector, if one exists.
 
-    this.luceneTerms = Idx.INDEXREADER.getTermVector(docId, fieldName);
+    LeafReaderContext leafContext = Idx.getLeafReaderContext (docId);
+
+    if (leafContext != null)
+      this.luceneTerms = leafContext.reader ().getTermVector (docId - leafContext.docBase, fieldName);
 
     //  If Lucene doesn't have a term vector, our TermVector is empty.
     
@@ -66,86 +111,204 @@ public class TermVector {
 
     int stemsLength = (int) this.luceneTerms.size();
     stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
     stemsFreq = new int[stemsLength + 1];
 
     //  Iterate through the terms, filling in the stem and frequency
-    //  information, and finding the position of the last term. The
-    //  0'th term indicates a stopword, so this loop starts at i=1.
+    //  information. The 0'th term indicates a stopword, so this loop
+    //  starts at i=1.
 
     TermsEnum ithTerm = this.luceneTerms.iterator();
     
-    int lastPosition = 0;
     for (int i = 1; ithTerm.next() != null; i++) {
       stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
       stemsFreq[i] = (int) ithTerm.totalTermFreq();
       fieldLength += stemsFreq[i]; 
-
-      //  Find the position of the last (indexed) term in the
-      //  document, so that the positions array can be created and
-      //  populated later. The last position for each term is the
-      //  largest, so ignore the positions before it.
-
-      PostingsEnum ithPositions = ithTerm.postings (null, PostingsEnum.POSITIONS);
-      ithPositions.nextDoc(); /* Initialize iPositions */
-
-      for (int j = 0; j < ithPositions.freq() - 1; j++)
-        ithPositions.nextPosition();
-
-      lastPosition = Math.max(lastPosition, ithPositions.nextPosition());
     }
 
-    // Create and fill the positions array. Since we have position indexes, the array's size needs 
-    // to be one bigger than the biggest position.
-    positions = new int[lastPosition + 1];
+    if (loadPositions)
+      this.loadPositions (true);
+  }
 
-    ithTerm = this.luceneTerms.iterator();
+  /**
+   *  Create the TermVectors of several documents.  If a pool is given,
+   *  the documents are read in parallel.
+   *  @param docIds Internal document ids.
+   *  @param fieldName The name of a document field.
+   *  @param loadPositions True if the positions arrays are needed.
+   *  @param pool The pool that reads the documents, or null to read
+   *     them in this thread.
+   *  @return The TermVectors, in the order of docIds.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static TermVector[] getTermVectors (int[] docIds, String fieldName,
+                                             boolean loadPositions, ForkJoinPool pool)
+    throws IOException {
 
-    for (int i = 0; ithTerm.next() != null; i++) {
-      PostingsEnum ithPositions = ithTerm.postings (null, PostingsEnum.POSITIONS);
+    TermVector[] tvs = new TermVector[docIds.length];
 
-      ithPositions.nextDoc(); /* Initialize iPositions */
+    if ((pool == null) || (docIds.length < 2)) {
+      for (int i = 0; i < docIds.length; i++)
+        tvs[i] = new TermVector (docIds[i], fieldName, loadPositions);
+
+      return tvs;
+    }
 
-      for (int j = 0; j < ithPositions.freq(); j++)
-        positions[ithPositions.nextPosition()] = i + 1;
+    List<Callable<TermVector>> tasks = new ArrayList<Callable<TermVector>> ();
+
+    for (int docId : docIds)
+      tasks.add (() -> new TermVector (docId, fieldName, loadPositions));
+
+    List<Future<TermVector>> futures = pool.invokeAll (tasks);
+
+    for (int i = 0; i < tvs.length; i++) {
+      try {
+        tvs[i] = futures.get (i).get ();
+      } catch (InterruptedException ex) {
+        Thread.currentThread ().interrupt ();
+        throw new IOException (ex);
+      } catch (ExecutionException ex) {
+        if (ex.getCause () instanceof IOException)
+          throw (IOException) ex.getCause ();
+        else if (ex.getCause () instanceof RuntimeException)
+          throw (RuntimeException) ex.getCause ();
+        else
+          throw new IOException (ex.getCause ());
+      }
     }
+
+    return tvs;
   }
 
   /**
    *  Get the index of stem in the stems vector, or -1 if the stems
-   *  vector does not contain the stem.  
+   *  vector does not contain the stem.  A hash table of the stems is
+   *  built the first time, so later lookups take constant time.
    *  @param stem The stem to search for.
    *  @return the index of the stem in the stems vector, or -1 if it does not occur.
    */
   public int indexOfStem (String stem) {
-    
-    for (int s=1; s<this.stems.length; s++)
-      if (stem.equals (this.stems [s]))
-	return s;
-    
-    return -1;
+
+    if (this.stems == null)
+      return -1;
+
+    Map<String, Integer> indexes = this.stemIndexes;
+
+    if (indexes == null) {
+      indexes = new HashMap<String, Integer> (2 * this.stems.length);
+
+      for (int s=1; s<this.stems.length; s++)
+        indexes.put (this.stems [s], s);
+
+      this.stemIndexes = indexes;
+    }
+
+    Integer s = indexes.get (stem);
+    return (s == null) ? -1 : s;
+  }
+
+  /**
+   *  Decode the positions of the term vector, finding the last
+   *  position, and optionally filling the positions array.  Positions
+   *  are decoded in order, so finding the last position of a stem
+   *  reads all of its positions.
+   *  @param fill True if the positions array should be filled.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private synchronized void loadPositions (boolean fill) throws IOException {
+
+    if ((this.positions != null) || ((! fill) && (this.positionsLength >= 0)))
+      return;
+
+    TermsEnum ithTerm = this.luceneTerms.iterator();
+    PostingsEnum ithPositions = null;
+    int[] pairs = fill ? new int[2 * Math.max (this.fieldLength, 1)] : null;
+    int numPairs = 0;
+    int lastPosition = 0;
+
+    //  Each (position, stem) pair is recorded, so that the positions
+    //  array can be filled without iterating again.
+
+    for (int i = 1; ithTerm.next() != null; i++) {
+      ithPositions = ithTerm.postings (ithPositions, PostingsEnum.POSITIONS);
+      ithPositions.nextDoc(); /* Initialize iPositions */
+
+      int position = 0;
+
+      for (int j = 0; j < ithPositions.freq(); j++) {
+        position = ithPositions.nextPosition();
+
+        if (fill) {
+          if (2 * numPairs == pairs.length)
+            pairs = Arrays.copyOf (pairs, 2 * pairs.length);
+
+          pairs[2 * numPairs] = position;
+          pairs[2 * numPairs + 1] = i;
+          numPairs ++;
+        }
+      }
+
+      lastPosition = Math.max(lastPosition, position);
+    }
+
+    // Since we have position indexes, the positions array's size needs 
+    // to be one bigger than the biggest position.
+
+    if (fill) {
+      int[] stemAtPosition = new int[lastPosition + 1];
+
+      for (int p = 0; p < numPairs; p++)
+        stemAtPosition[pairs[2 * p]] = pairs[2 * p + 1];
+
+      this.positions = stemAtPosition;
+    }
+
+    this.positionsLength = lastPosition + 1;
   }
 
   /**
    *  Get the number of positions in this field (the length of the
-   *  field). If positions are not stored, it returns 0.
+   *  field). If positions are not stored, it returns 0.  Positions are
+   *  decoded, if they haven't been already.
    *  @return The number of positionsin this field (the field length).
    */
   public int positionsLength() {
     if (this.fieldLength == 0)
       return 0;
 
-    return this.positions.length;
+    if (this.positionsLength < 0) {
+      try {
+        this.loadPositions (false);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+
+    return this.positionsLength;
   }
 
   /**
    *  Return the index of the stem that occurred at position i in the
-   *  document.  If positions are not stored, it returns -1.
+   *  document.  If positions are not stored, it returns -1.  The
+   *  positions array is loaded, if it hasn't been already.
    *  @param i A position in the document.
    *  @return Index of the stem.
    */
   public int stemAt(int i) {
+    if (this.fieldLength == 0)
+      return -1;
+
+    int[] positions = this.positions;
+
+    if (positions == null) {
+      try {
+        this.loadPositions (true);
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+
+      positions = this.positions;
+    }
+
     if (i < positions.length)
       return positions[i];
     else
@@ -196,7 +359,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return Idx.INDEXREADER.totalTermFreq(new Term(fieldName, stems[i]));
   }
   
   /**
@@ -206,7 +369,7 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return Idx.INDEXREADER.docFreq(new Term(fieldName, stems[i]));
   }
   
 }
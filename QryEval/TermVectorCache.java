@@ -0,0 +1,96 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  A cache of the TermVectors of a batch of (document, field) pairs,
+ *  for example, the documents whose learning-to-rank features are
+ *  being computed for one query.  Several features read the same
+ *  field of the same document, and each reads the cached TermVector
+ *  instead of reading it from the index again.
+ *  <p>
+ *  The cache keeps the most recently used TermVectors, up to a number
+ *  of entries, which bounds its memory.  It is safe to use from
+ *  several threads at once.
+ *  </p>
+ */
+public class TermVectorCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final int maxEntries;
+  private final LinkedHashMap<String, TermVector> entries;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param maxEntries The number of TermVectors to keep.
+   */
+  public TermVectorCache (int maxEntries) {
+    this.maxEntries = Math.max (maxEntries, 1);
+    this.entries = new LinkedHashMap<String, TermVector> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<String, TermVector> eldest) {
+        return (this.size () > TermVectorCache.this.maxEntries);
+      }
+    };
+  }
+
+  /**
+   *  Discard the cached TermVectors and statistics, e.g., at the end
+   *  of a batch.
+   */
+  public synchronized void clear () {
+    this.entries.clear ();
+    this.hits = 0;
+    this.misses = 0;
+  }
+
+  /**
+   *  Get the TermVector of a document field.  Its positions are loaded
+   *  when they are first needed (see TermVector).
+   *  @param docId An internal document id
+   *  @param fieldName The name of a document field.
+   *  @return The TermVector, which may be shared.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public TermVector get (int docId, String fieldName) throws IOException {
+
+    String key = fieldName + ":" + docId;
+    TermVector tv;
+
+    synchronized (this) {
+      tv = this.entries.get (key);
+
+      if (tv != null) {
+        this.hits ++;
+        return tv;
+      }
+
+      this.misses ++;
+    }
+
+    tv = new TermVector (docId, fieldName);
+
+    synchronized (this) {
+      this.entries.put (key, tv);
+    }
+
+    return tv;
+  }
+
+  /**
+   *  Describe the cache's use, e.g., for a report at the end of a run.
+   *  @return The hits and misses of the cache.
+   */
+  public synchronized String getStatistics () {
+    return String.format ("TermVector cache:  %d hits, %d misses, %d of %d entries",
+                          this.hits, this.misses, this.entries.size (), this.maxEntries);
+  }
+}
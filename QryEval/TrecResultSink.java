@@ -0,0 +1,106 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ *  Writes results in trec_eval format, one tab-separated line per
+ *  document:
+ *  <pre>
+ *    QueryID Q0 DocID Rank Score RunID
+ *  </pre>
+ *  A query without results gets one "dummy" line, so that trec_eval
+ *  still counts it.  The file is opened once and buffered, and lines
+ *  are written field by field instead of being formatted.
+ */
+public class TrecResultSink implements ResultSink {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final String RUN_ID = "run-1";
+
+  private final Writer output;
+  private final boolean echo;			// Also write to System.out
+  private final ScoreFormat scoreFormat;
+  private final StringBuilder line = new StringBuilder ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param path The results file, which is appended to.
+   *  @param echo True if results are also written to System.out.
+   *  @param scoreFormat How scores are written.
+   *  @throws IOException Error opening the file.
+   */
+  public TrecResultSink (String path, boolean echo, ScoreFormat scoreFormat)
+    throws IOException {
+    this.output = new BufferedWriter (new FileWriter (path, true), 1 << 16);
+    this.echo = echo;
+    this.scoreFormat = scoreFormat;
+  }
+
+  /**
+   *  Constructor.
+   *  @param output The destination of the results, e.g., a socket.
+   *  @param echo True if results are also written to System.out.
+   *  @param scoreFormat How scores are written.
+   */
+  public TrecResultSink (Writer output, boolean echo, ScoreFormat scoreFormat) {
+    this.output = output;
+    this.echo = echo;
+    this.scoreFormat = scoreFormat;
+  }
+
+  /**
+   *  Flush and close the results file.
+   *  @throws IOException Error writing the file.
+   */
+  public void close () throws IOException {
+    this.output.close ();
+  }
+
+  /**
+   *  Write the top results of one query.
+   *  @param queryName The query id.
+   *  @param results The query's results, sorted by score and external docid.
+   *  @param length The number of results to write.
+   *  @throws IOException Error accessing the Lucene index or writing the results.
+   */
+  public void write (String queryName, ScoreList results, int length)
+    throws IOException {
+
+    if (results.size () < 1) {
+      this.line.setLength (0);
+      this.line.append (queryName).append (" Q0 dummy 1 0.000000 ").append (RUN_ID).append ('\n');
+      this.writeLine ();
+      return;
+    }
+
+    int n = Math.min (results.size (), length);
+
+    for (int i = 0; i < n; i++) {
+      this.line.setLength (0);
+      this.line.append (queryName).append ("\tQ0\t")
+        .append (results.getExternalDocid (i)).append ('\t')
+        .append (i + 1).append ('\t');
+      this.scoreFormat.append (this.line, results.getDocidScore (i))
+        .append ('\t').append (RUN_ID).append ('\n');
+      this.writeLine ();
+    }
+  }
+
+  /**
+   *  Write the line buffer to the results file, and maybe System.out.
+   *  @throws IOException Error writing the file.
+   */
+  private void writeLine () throws IOException {
+    this.output.append (this.line);
+
+    if (this.echo)
+      System.out.println (this.line);
+  }
+}
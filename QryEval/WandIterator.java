@@ -0,0 +1,240 @@
+/**
+ *  Copyright (c) 2019, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The WAND and Block-Max WAND docIterator strategies.  They find the
+ *  documents that may score at least a threshold, for query operators
+ *  whose scores are bounded by a base value plus a gain for each
+ *  argument that matches the document.  For example, a BM25 #SUM has
+ *  a base of 0, and each argument's gain is its maximum score.  An
+ *  Indri #AND is bounded the same way in log space:  the base is the
+ *  sum of the arguments' maximum (log) default scores, and an
+ *  argument's gain is how much more it can add if it matches.
+ *  <p>
+ *  WAND sorts the arguments by their current documents, and finds the
+ *  first document (the pivot) at which the gains add up to the
+ *  threshold; no earlier document can reach it.  Block-Max WAND also
+ *  checks the arguments' block bounds at the pivot, and skips whole
+ *  blocks whose bounds can't reach the threshold.
+ *  </p><p>
+ *  The iterator only chooses documents.  The query operator scores
+ *  them as usual, so rankings don't change.
+ *  </p>
+ */
+public class WandIterator {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Bounds are compared to the threshold with a little slack, so
+   *  that rounding can't prune a document that would be kept.
+   */
+  private static final double BOUND_SLACK = 1e-9;
+
+  /**
+   *  Converts an argument's block bound (see QrySop.getBlockMaxScore)
+   *  to a gain.
+   */
+  public interface BlockGain {
+    double getBlockGain (int i);
+  }
+
+  private final QrySop[] args;
+  private final double[] gains;
+  private final double base;
+  private final BlockGain blockGain;	// null for WAND
+  private final boolean logSpace;	// Compare log (threshold)
+
+  private final int[] docids;		// Each argument's current document
+  private final int[] order;		// Arguments sorted by document
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Constructor.
+   *  @param args The query operator's arguments.
+   *  @param gains The most that each argument can add to a score.
+   *  @param base The most that a document can score from arguments
+   *     that don't match it.
+   *  @param blockGain The gain of each argument in its current block
+   *     (Block-Max WAND), or null (WAND).
+   *  @param logSpace True if the bounds are logs of scores.
+   */
+  public WandIterator (QrySop[] args, double[] gains, double base,
+                       BlockGain blockGain, boolean logSpace) {
+    this.args = args;
+    this.gains = gains;
+    this.base = base;
+    this.blockGain = blockGain;
+    this.logSpace = logSpace;
+    this.docids = new int [args.length];
+    this.order = new int [args.length];
+  }
+
+  /**
+   *  Create an iterator for an Indri operator whose score is the
+   *  weighted geometric mean of its arguments' scores (#AND, #WAND).
+   *  @param args The query operator's arguments, which have been initialized.
+   *  @param exponents The weight of each argument, divided by the total weight.
+   *  @param blockMax True for Block-Max WAND, false for WAND.
+   *  @return The iterator, or null if an argument's scores aren't bounded.
+   */
+  public static WandIterator forIndri (QrySop[] args, double[] exponents,
+                                       boolean blockMax) {
+
+    double[] defaults = new double [args.length];
+    double[] gains = new double [args.length];
+    double base = 0.0;
+
+    for (int i = 0; i < args.length; i++) {
+      if (Double.isInfinite (args[i].getMaxScore ()) ||
+          Double.isInfinite (args[i].getMaxDefaultScore ()))
+        return null;
+
+      defaults[i] = exponents[i] * Math.log (args[i].getMaxDefaultScore ());
+      gains[i] = Math.max (0.0, exponents[i] * Math.log (args[i].getMaxScore ()) - defaults[i]);
+      base += defaults[i];
+    }
+
+    BlockGain blockGain = null;
+
+    if (blockMax)
+      blockGain = i ->
+        Math.max (0.0, exponents[i] * Math.log (args[i].getBlockMaxScore ()) - defaults[i]);
+
+    return new WandIterator (args, gains, base, blockGain, true);
+  }
+
+  /**
+   *  Create an iterator for an operator whose score is the sum of
+   *  its arguments' scores (e.g., BM25 #SUM).
+   *  @param args The query operator's arguments, which have been initialized.
+   *  @param blockMax True for Block-Max WAND, false for WAND.
+   *  @return The iterator, or null if an argument's scores aren't bounded.
+   */
+  public static WandIterator forSum (QrySop[] args, boolean blockMax) {
+
+    double[] gains = new double [args.length];
+
+    for (int i = 0; i < args.length; i++) {
+      if (Double.isInfinite (args[i].getMaxScore ()))
+        return null;
+
+      gains[i] = args[i].getMaxScore ();
+    }
+
+    BlockGain blockGain = null;
+
+    if (blockMax)
+      blockGain = i -> args[i].getBlockMaxScore ();
+
+    return new WandIterator (args, gains, 0.0, blockGain, false);
+  }
+
+  /**
+   *  Advance the arguments to the next document that may score at
+   *  least the threshold.  When a document is found, the arguments
+   *  that match it point to it, and the other arguments point to
+   *  later documents.
+   *  @param r The retrieval model that determines what is a match
+   *  @param threshold The lowest score that can still enter the results.
+   *  @return True if there is such a document, otherwise false.
+   */
+  public boolean next (RetrievalModel r, double threshold) {
+
+    if (this.logSpace)
+      threshold = (threshold > 0) ? Math.log (threshold) : Double.NEGATIVE_INFINITY;
+
+    double t = threshold - BOUND_SLACK * Math.max (1.0, Math.abs (threshold));
+
+    while (true) {
+
+      //  Sort the arguments that have documents by their documents.
+
+      int n = 0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].docIteratorHasMatch (r)) {
+          this.docids[i] = this.args[i].docIteratorGetMatch ();
+
+          int k = n++;
+
+          while ((k > 0) && (this.docids[this.order[k - 1]] > this.docids[i])) {
+            this.order[k] = this.order[k - 1];
+            k--;
+          }
+
+          this.order[k] = i;
+        }
+      }
+
+      //  Find the pivot.
+
+      double bound = this.base;
+      int pivot = -1;
+
+      for (int k = 0; k < n; k++) {
+        bound += this.gains[this.order[k]];
+
+        if (bound >= t) {
+          pivot = k;
+          break;
+        }
+      }
+
+      if (pivot < 0)
+        return false;
+
+      int pivotDocid = this.docids[this.order[pivot]];
+
+      while ((pivot + 1 < n) && (this.docids[this.order[pivot + 1]] == pivotDocid))
+        pivot++;
+
+      //  Block-Max WAND:  If the blocks at the pivot can't reach the
+      //  threshold, no document before the end of the shortest block
+      //  (or the next argument's document) can.
+
+      if (this.blockGain != null) {
+        double blockBound = this.base;
+        int blockEnd = Integer.MAX_VALUE;
+
+        for (int k = 0; k <= pivot; k++) {
+          int i = this.order[k];
+
+          blockEnd = Math.min (blockEnd, this.args[i].docIteratorAdvanceShallow (pivotDocid));
+          blockBound += this.blockGain.getBlockGain (i);
+        }
+
+        if (blockBound < t) {
+          int nextDocid = (blockEnd == Integer.MAX_VALUE) ? Integer.MAX_VALUE : blockEnd + 1;
+
+          if (pivot + 1 < n)
+            nextDocid = Math.min (nextDocid, this.docids[this.order[pivot + 1]]);
+
+          if (nextDocid == Integer.MAX_VALUE)
+            return false;
+
+          nextDocid = Math.max (nextDocid, pivotDocid + 1);
+
+          for (int k = 0; k <= pivot; k++)
+            this.args[this.order[k]].docIteratorAdvanceTo (nextDocid);
+
+          continue;
+        }
+      }
+
+      //  The arguments before the pivot skip to the pivot document.
+
+      if (this.docids[this.order[0]] == pivotDocid)
+        return true;
+
+      for (int k = 0; k < pivot; k++) {
+        int i = this.order[k];
+
+        if (this.docids[i] < pivotDocid)
+          this.args[i].docIteratorAdvanceTo (pivotDocid);
+      }
+    }
+  }
+}